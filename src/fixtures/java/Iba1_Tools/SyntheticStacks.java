@@ -0,0 +1,80 @@
+package Iba1_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ShortProcessor;
+import java.util.Random;
+
+
+/**
+ * Synthetic Iba1-like 16-bit stacks for tests and benchmarks: noisy background, bright somas and thinner processes
+ * Same seed gives the same stack, so that runs on different commits see the same data
+ * @author Héloïse Monnet
+ */
+public class SyntheticStacks {
+
+    public final ImagePlus iba1;
+    // Somas labels (16-bit), as Cellpose would return them
+    public final ImagePlus somaLabels;
+    public final int nCells;
+
+
+    /**
+     * @param cellsPerMPix number of cells per million pixels of a slice
+     */
+    public SyntheticStacks(int width, int height, int depth, double cellsPerMPix, long seed) {
+        Random rnd = new Random(seed);
+        short[][] px = new short[depth][width*height];
+        short[][] lbl = new short[depth][width*height];
+
+        // Background with noise
+        for (int z = 0; z < depth; z++)
+            for (int i = 0; i < width*height; i++)
+                px[z][i] = (short) Math.max(0, 200 + rnd.nextGaussian()*30);
+
+        nCells = (int) Math.max(1, Math.round(cellsPerMPix * width * height / 1e6));
+        for (int c = 0; c < nCells; c++) {
+            int cx = rnd.nextInt(width);
+            int cy = rnd.nextInt(height);
+            int cz = rnd.nextInt(depth);
+            int r = 5 + rnd.nextInt(4);
+            int rz = 2 + rnd.nextInt(2);
+
+            // Processes, drawn first so that somas stay on top
+            int nProc = 4 + rnd.nextInt(3);
+            for (int p = 0; p < nProc; p++) {
+                double angle = rnd.nextDouble() * 2 * Math.PI;
+                int length = 20 + rnd.nextInt(21);
+                int pz = Math.min(depth-1, Math.max(0, cz + rnd.nextInt(3) - 1));
+                for (int l = r; l < r + length; l++) {
+                    int x = (int) Math.round(cx + l*Math.cos(angle));
+                    int y = (int) Math.round(cy + l*Math.sin(angle));
+                    for (int dy = -1; dy <= 1; dy++)
+                        for (int dx = -1; dx <= 1; dx++)
+                            if (x+dx >= 0 && x+dx < width && y+dy >= 0 && y+dy < height)
+                                px[pz][(y+dy)*width + x+dx] = (short) (800 + rnd.nextInt(100));
+                }
+            }
+
+            // Soma
+            for (int z = Math.max(0, cz-rz); z <= Math.min(depth-1, cz+rz); z++)
+                for (int y = Math.max(0, cy-r); y <= Math.min(height-1, cy+r); y++)
+                    for (int x = Math.max(0, cx-r); x <= Math.min(width-1, cx+r); x++) {
+                        double d = Math.pow((x-cx)/(double) r, 2) + Math.pow((y-cy)/(double) r, 2) + Math.pow((z-cz)/(double) rz, 2);
+                        if (d <= 1) {
+                            px[z][y*width + x] = (short) (1500 + rnd.nextInt(200));
+                            lbl[z][y*width + x] = (short) (c+1);
+                        }
+                    }
+        }
+
+        ImageStack stack = new ImageStack(width, height);
+        ImageStack labels = new ImageStack(width, height);
+        for (int z = 0; z < depth; z++) {
+            stack.addSlice(new ShortProcessor(width, height, px[z], null));
+            labels.addSlice(new ShortProcessor(width, height, lbl[z], null));
+        }
+        iba1 = new ImagePlus("synthetic", stack);
+        somaLabels = new ImagePlus("synthetic-labels", labels);
+    }
+}
@@ -0,0 +1,50 @@
+package Iba1_Tools;
+
+import Iba1_Tools.Filters.FilterBackends;
+import ij.gui.OvalRoi;
+import ij.gui.Roi;
+import java.util.ArrayList;
+
+
+/**
+ * Tools, parameters and synthetic stack shared by tests and benchmarks
+ * CPU filters backend, no masks cache, 0.3 x 0.3 x 1 microns voxels, one oval ROI
+ * @author Héloïse Monnet
+ */
+public class ToolsFixture {
+
+    public final Tools tools;
+    public final Parameters params;
+    public final SyntheticStacks stacks;
+    public final ArrayList<Roi> rois;
+
+
+    /**
+     * 256 x 192 stack with 400 cells per million pixels
+     */
+    public ToolsFixture(int depth, long seed) {
+        this(256, 192, depth, 400, seed);
+    }
+
+
+    public ToolsFixture(int width, int height, int depth, double cellsPerMPix, long seed) {
+        tools = tools();
+        params = new Parameters(tools, "0", 0);
+        stacks = new SyntheticStacks(width, height, depth, cellsPerMPix, seed);
+        rois = new ArrayList<>();
+        rois.add(new OvalRoi(20, 30, 90, 70));
+    }
+
+
+    /**
+     * Tools with the fixture settings, to be changed before building other parameters
+     */
+    public static Tools tools() {
+        Tools tools = new Tools();
+        tools.filterBackend = FilterBackends.CPU;
+        tools.maskCacheGB = 0;
+        tools.cal.pixelWidth = tools.cal.pixelHeight = 0.3;
+        tools.cal.pixelDepth = 1;
+        return(tools);
+    }
+}
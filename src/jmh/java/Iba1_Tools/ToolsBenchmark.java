@@ -0,0 +1,129 @@
+package Iba1_Tools;
+
+import ij.ImagePlus;
+import ij.gui.OvalRoi;
+import ij.gui.Roi;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import mcib3d.geom2.Objects3DIntPopulation;
+import mcib3d.image3d.ImageHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Throughput of the Tools hot paths on synthetic Iba1 stacks, CPU filters backend only
+ * Run with: mvn -Pbenchmark package exec:exec (GC profiler enabled, see pom.xml)
+ * Stack size and cells density can be changed with -Djmh.args="-p size=1024x1024x30 -p cellsPerMPix=200"
+ * @author Héloïse Monnet
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ToolsBenchmark {
+
+    /**
+     * Synthetic stack and the objects derived from it, built once per trial
+     */
+    @State(Scope.Benchmark)
+    public static class Data {
+
+        @Param({"512x512x20"})
+        public String size;
+
+        @Param({"100"})
+        public double cellsPerMPix;
+
+        Tools tools;
+        Parameters params;
+        SyntheticStacks stacks;
+        ArrayList<Roi> rois;
+        ImagePlus binary;
+        BitMask cellMask;
+        Objects3DIntPopulation somaPop;
+        File overlay;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            String[] dims = size.split("x");
+            ToolsFixture fixture = new ToolsFixture(Integer.parseInt(dims[0]), Integer.parseInt(dims[1]), Integer.parseInt(dims[2]), cellsPerMPix, 42);
+            tools = fixture.tools;
+            params = fixture.params;
+            stacks = fixture.stacks;
+
+            int width = stacks.iba1.getWidth();
+            int height = stacks.iba1.getHeight();
+            rois = new ArrayList<>();
+            rois.add(new OvalRoi(width/8, height/8, width/4, height/4));
+            rois.add(new OvalRoi(width/2, height/2, width/3, height/5));
+
+            binary = params.filters.threshold(params.filters.median3DSliceBySlice(stacks.iba1, 2), params.cellThMethod);
+            cellMask = tools.segmentation(stacks.iba1, rois, params);
+            somaPop = new Objects3DIntPopulation(ImageHandler.wrap(stacks.somaLabels));
+            overlay = File.createTempFile("iba1-bench", ".tif");
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            overlay.delete();
+        }
+    }
+
+
+    @Benchmark
+    public BitMask segmentation(Data data) {
+        return(data.tools.segmentation(data.stacks.iba1, data.rois, data.params));
+    }
+
+    @Benchmark
+    public Objects3DIntPopulation somaFilter(Data data) {
+        // Somas kept with the cells mask, from a single scan of the labels
+        return(SomaFilter.measure(data.stacks.somaLabels, data.cellMask).filter(data.somaPop, 0, data.params.minSomaVol, data.params.maxSomaVol, data.params));
+    }
+
+    @Benchmark
+    public ImagePlus fillImg(Data data) {
+        // Filling is idempotent, so the same binary image can be filled again and again
+        return(data.tools.fillImg(data.binary, data.rois));
+    }
+
+    @Benchmark
+    public double getRoisVolume(Data data) {
+        return(data.tools.getRoisVolume(data.rois, data.stacks.iba1, data.params));
+    }
+
+    @Benchmark
+    public MaskStats measureIntensity(Data data) {
+        return(data.tools.measureIntensity(data.cellMask, data.stacks.iba1));
+    }
+
+    @Benchmark
+    public double computeBackgroundNoise(Data data) {
+        return(data.tools.computeBackgroundNoise(data.stacks.iba1));
+    }
+
+    @Benchmark
+    public double findPopVolume(Data data) {
+        return(data.tools.findPopVolume(data.somaPop));
+    }
+
+    @Benchmark
+    public void drawResults(Data data) throws Exception {
+        data.tools.drawResults(data.somaPop, data.cellMask, data.stacks.iba1, data.overlay.getPath(), data.params);
+    }
+}
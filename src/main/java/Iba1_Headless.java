@@ -0,0 +1,94 @@
+import Iba1_Tools.BatchRunner;
+import Iba1_Tools.HeadlessOptions;
+import Iba1_Tools.Parameters;
+import Iba1_Tools.ReaderCache;
+import Iba1_Tools.ResultsFolder;
+import Iba1_Tools.Tools;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import loci.common.DebugTools;
+import loci.formats.meta.IMetadata;
+import loci.plugins.util.ImageProcessorReader;
+import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+
+/**
+* Headless entry point of the Iba1 analysis, for cluster jobs
+* Runs one shard of an images folder with parameters given as arguments, or merges shards results
+* From Fiji: ImageJ --headless --run "Iba1 headless" "args='--images /data --params iba1.properties --shard 3/10'"
+* (paths with spaces between double quotes, escaped for the shell: args='--images \"/data/my images\"')
+* From the JVM: java -cp <Fiji jars> Iba1_Headless --images /data --params iba1.properties --shard 3/10
+* @author Héloïse Monnet
+*/
+@Plugin(type = Command.class, headless = true, menuPath = "Plugins>CIRB>Rouach>Julie>Iba1 headless")
+public class Iba1_Headless implements Command {
+
+    @Parameter(label = "Arguments", description = HeadlessOptions.USAGE)
+    private String args;
+
+
+    @Override
+    public void run() {
+        try {
+            analyze(HeadlessOptions.parse(HeadlessOptions.split(args)));
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+
+    public static void main(String[] args) {
+        try {
+            analyze(HeadlessOptions.parse(args));
+            System.exit(0);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+
+    private static void analyze(HeadlessOptions options) throws Exception {
+        if (options.merge != null) {
+            List<File> dirs = options.mergeDirs();
+            if (dirs.isEmpty())
+                throw new IllegalArgumentException("No results folder to merge in " + options.merge);
+            ResultsFolder.merge(dirs, options.mergeOutput(dirs));
+            return;
+        }
+
+        Tools tools = new Tools();
+        if (!tools.checkInstalledModules())
+            throw new IllegalStateException("Missing modules");
+
+        // Find images with fileExt extension, all shards see the same sorted list
+        String fileExt = tools.findImageType(options.imageDir);
+        ArrayList<String> imageFiles = tools.findImages(options.imageDir, fileExt);
+        if (imageFiles == null || imageFiles.isEmpty())
+            throw new IllegalArgumentException("No images found in " + options.imageDir);
+        List<String> shardFiles = options.shardImages(imageFiles);
+        System.out.println("Shard " + options.shard + "/" + options.nShards + ": " + shardFiles.size() + " of " + imageFiles.size() + " images");
+
+        // Calibration and channels of the first image, as in the dialog box
+        DebugTools.setRootLevel("warn");
+        // Bio-Formats cache folder of the run, not the default one
+        options.applyReading(tools);
+        String[] channels;
+        try (ImageProcessorReader reader = new ReaderCache(tools.readerCacheDir).open(imageFiles.get(0))) {
+            IMetadata meta = ReaderCache.metadata(reader);
+            tools.findImageCalib(meta);
+            channels = tools.findChannels(imageFiles.get(0), meta, reader);
+        }
+        Parameters params = options.apply(tools, channels);
+
+        ResultsFolder results = ResultsFolder.openAt(options.resultsDir(params), params);
+        new BatchRunner(tools, params).run(options.imageDir, shardFiles, results);
+        tools.print("All done!");
+    }
+}
@@ -0,0 +1,125 @@
+package Iba1_Tools;
+
+import ij.ImagePlus;
+import ij.gui.Roi;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+
+/**
+ * Analysis of a list of images through the staged pipeline, shared by the plugin and the headless command
+ * @author Héloïse Monnet
+ */
+public class BatchRunner {
+
+    private final Tools tools;
+    private final Parameters params;
+
+
+    public BatchRunner(Tools tools, Parameters params) {
+        this.tools = tools;
+        this.params = params;
+    }
+
+
+    /**
+     * Analyze images not already in the results folder, then close it
+     */
+    public void run(String imageDir, List<String> imageFiles, ResultsFolder results) throws IOException, ExecutionException, InterruptedException {
+        String outDirResults = results.dir;
+
+        // Each series of a file is an image of its own, skip images already analyzed
+        Timings timings = new Timings(outDirResults);
+        List<List<String>> filesSeries = tools.findSeries(imageFiles, params, results);
+        ArrayList<ImageJob> jobs = new ArrayList<>();
+        for (int f = 0; f < imageFiles.size(); f++) {
+            String file = imageFiles.get(f);
+            List<String> series = filesSeries.get(f);
+            for (int s = 0; s < series.size(); s++) {
+                if (results.isDone(series.get(s))) {
+                    System.out.println("Skipping " + series.get(s) + ", already analyzed");
+                    continue;
+                }
+                ImageJob job = new ImageJob(jobs.size(), file, s, series.get(s));
+                job.timings = timings;
+                jobs.add(job);
+            }
+        }
+
+        Pipeline pipeline = new Pipeline(params.queueSize)
+            .addStage("Reading", params.readThreads, job -> {
+                tools.print("--- ANALYZING IMAGE " + job.rootName + " ------");
+
+                // Check if ROIs file exists, keep rois to clear regions containing "artefacts"
+                ArrayList<Roi> rois = tools.loadRois(imageDir, job.rootName);
+
+                // Open Iba1 channel
+                tools.print("- Opening Iba1 channel of " + job.rootName + " -");
+                tools.openChannel(job, params);
+                job.roiMask = tools.roiMask(rois, job.imgIba1);
+            })
+            .addStage("Segmentation", params.segThreads, job -> {
+                // Segment Iba1 cells and compute Iba1 background noise
+                tools.print("- Segmenting Iba1 cells of " + job.rootName + " -");
+                tools.segmentation(job, job.params);
+            })
+            .addBatchStage("Somas", params.somaThreads, params.cellposeBatchSize, batch -> {
+                // Detect Iba1 soma with Cellpose, one call for the whole batch
+                tools.print("- Detecting Iba1 somas of " + batch.size() + " image(s) -");
+                tools.cellposeDetection(batch, params);
+            })
+            .addStage("Measurement", params.measureThreads, job -> {
+                tools.print("- Measuring Iba1 cells of " + job.rootName + " -");
+                ImagePlus imgIba1 = job.imgIba1;
+                double imgVol = imgIba1.getWidth() * imgIba1.getHeight() * imgIba1.getNSlices() * job.params.pixVol;
+                double roisVol = tools.getRoisVolume(job.roiMask, imgIba1, job.params);
+                // One row per threshold method
+                StringBuilder rows = new StringBuilder();
+                for (String method: job.cellMasks.keySet()) {
+                    // Voxels count and intensities of cells mask in a single pass
+                    MaskStats stats = tools.measureIntensity(job.cellMasks.get(method), imgIba1);
+                    rows.append(job.rootName+"\t"+method+"\t"+imgVol+"\t"+(imgVol-roisVol)+"\t"+job.bg+"\t"+job.somaPops.get(method).getNbObjects()+"\t"+
+                            stats.volume(job.params)+"\t"+(stats.mean() - job.bg)+"\t"+(stats.sum - job.bg*stats.count)+"\n");
+                }
+                job.results = rows.toString();
+            })
+            .addStage("Drawing", params.writeThreads, job -> {
+                // Draw results
+                tools.print("- Drawing results of " + job.rootName + " -");
+                // Results image of the main threshold method only
+                String method = job.params.cellThMethod;
+                tools.drawResults(job.somaPops.get(method), job.cellMasks.get(method), job.imgIba1, outDirResults+job.rootName+".tif", job.params);
+
+                tools.closeImage(job.imgIba1);
+                job.imgIba1 = null;
+                job.cellMasks = null;
+                job.roiMask = null;
+                job.somaPops = null;
+            })
+            .onError(job -> {
+                // Log failure and go on with next images
+                results.writeError(job.rootName, job.errorStage, job.error);
+                if (job.imgIba1 != null)
+                    tools.closeImage(job.imgIba1);
+                job.imgIba1 = null;
+                job.cellMasks = null;
+                job.roiMask = null;
+                job.somaPops = null;
+            });
+
+        // Write results in images order
+        long start = System.nanoTime();
+        try {
+            pipeline.run(jobs, job -> results.writeResults(job.results));
+        } finally {
+            // Timings file is closed even if results cannot be
+            try {
+                results.close();
+            } finally {
+                timings.summary(jobs.size(), System.nanoTime() - start);
+            }
+        }
+    }
+}
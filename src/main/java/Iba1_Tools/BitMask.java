@@ -0,0 +1,163 @@
+package Iba1_Tools;
+
+import java.util.stream.IntStream;
+import mcib3d.geom2.Object3DInt;
+import mcib3d.geom2.Object3DPlane;
+import mcib3d.geom2.VoxelInt;
+import mcib3d.image3d.ImageByte;
+
+
+/**
+ * Binary 3D mask packed as one bitset per plane (1 bit per voxel)
+ * Used for the whole-image cells mask in place of an Object3DInt voxels list
+ * @author Héloïse Monnet
+ */
+public class BitMask {
+
+    public final int width;
+    public final int height;
+    public final int nSlices;
+    // Bit i of plane z is voxel (i % width, i / width, z)
+    private final long[][] planes;
+
+
+    public BitMask(int width, int height, int nSlices) {
+        this.width = width;
+        this.height = height;
+        this.nSlices = nSlices;
+        int words = (width*height + 63) >>> 6;
+        planes = new long[nSlices][words];
+    }
+
+
+    /**
+     * Mask of the voxels of an object
+     */
+    public static BitMask fromObject(Object3DInt obj, int width, int height, int nSlices) {
+        BitMask mask = new BitMask(width, height, nSlices);
+        for (Object3DPlane plane: obj.getObject3DPlanes())
+            if (plane.getZ() >= 0 && plane.getZ() < nSlices)
+                for (VoxelInt v: plane.getVoxels())
+                    mask.set(v.getX() + v.getY()*width, plane.getZ());
+        return(mask);
+    }
+
+
+    public void set(int i, int z) {
+        planes[z][i >>> 6] |= 1L << i;
+    }
+
+
+    public boolean get(int i, int z) {
+        return((planes[z][i >>> 6] & (1L << i)) != 0);
+    }
+
+
+    /**
+     * Number of voxels in mask
+     */
+    public long count() {
+        return(IntStream.range(0, nSlices).parallel().mapToLong(z -> {
+            long n = 0;
+            for (long word: planes[z])
+                n += Long.bitCount(word);
+            return(n);
+        }).sum());
+    }
+
+
+    /**
+     * Union of masks of the same size
+     */
+    public static BitMask union(Iterable<BitMask> masks) {
+        BitMask union = null;
+        for (BitMask mask: masks) {
+            if (union == null)
+                union = new BitMask(mask.width, mask.height, mask.nSlices);
+            for (int z = 0; z < Math.min(union.nSlices, mask.nSlices); z++) {
+                long[] words = union.planes[z], other = mask.planes[z];
+                for (int w = 0; w < words.length; w++)
+                    words[w] |= other[w];
+            }
+        }
+        return(union);
+    }
+
+
+    /**
+     * Bounding box of mask {xmin, ymin, zmin, xmax, ymax, zmax}, null if mask is empty
+     */
+    public int[] boundingBox() {
+        int[][] boxes = new int[nSlices][];
+        IntStream.range(0, nSlices).parallel().forEach(z -> {
+            long[] words = planes[z];
+            int xmin = Integer.MAX_VALUE, ymin = Integer.MAX_VALUE, xmax = -1, ymax = -1;
+            for (int w = 0; w < words.length; w++) {
+                long word = words[w];
+                while (word != 0) {
+                    int i = (w << 6) + Long.numberOfTrailingZeros(word);
+                    int x = i % width, y = i / width;
+                    xmin = Math.min(xmin, x);
+                    xmax = Math.max(xmax, x);
+                    ymin = Math.min(ymin, y);
+                    ymax = Math.max(ymax, y);
+                    word &= word - 1;
+                }
+            }
+            if (xmax >= 0)
+                boxes[z] = new int[] {xmin, ymin, xmax, ymax};
+        });
+        int[] box = null;
+        for (int z = 0; z < nSlices; z++) {
+            int[] b = boxes[z];
+            if (b == null)
+                continue;
+            if (box == null)
+                box = new int[] {b[0], b[1], z, b[2], b[3], z};
+            box[0] = Math.min(box[0], b[0]);
+            box[1] = Math.min(box[1], b[1]);
+            box[3] = Math.max(box[3], b[2]);
+            box[4] = Math.max(box[4], b[3]);
+            box[5] = z;
+        }
+        return(box);
+    }
+
+
+    /**
+     * Bitset of plane z, for the measurement kernels
+     */
+    long[] words(int z) {
+        return(planes[z]);
+    }
+
+
+    /**
+     * Draw plane z of mask into 8-bit pixels
+     */
+    public void drawPlane(int z, byte[] pixels, byte value) {
+        long[] words = planes[z];
+        for (int w = 0; w < words.length; w++) {
+            long word = words[w];
+            while (word != 0) {
+                pixels[(w << 6) + Long.numberOfTrailingZeros(word)] = value;
+                word &= word - 1;
+            }
+        }
+    }
+
+
+    /**
+     * Object with the voxels of the mask, for the code still working on mcib3d objects
+     */
+    public Object3DInt toObject3DInt(Parameters params) {
+        ImageByte imh = new ImageByte("mask", width, height, nSlices);
+        for (int z = 0; z < nSlices; z++)
+            drawPlane(z, imh.pixels[z], (byte) 255);
+        Object3DInt obj = new Object3DInt(imh);
+        obj.setVoxelSizeXY(params.pixelWidth);
+        obj.setVoxelSizeZ(params.pixelDepth);
+        return(obj);
+    }
+
+}
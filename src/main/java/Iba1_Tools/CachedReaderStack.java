@@ -0,0 +1,129 @@
+package Iba1_Tools;
+
+import ij.VirtualStack;
+import ij.process.ImageProcessor;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import loci.formats.FormatException;
+import loci.plugins.util.ImageProcessorReader;
+
+
+/**
+ * Virtual stack of one channel of a Bio-Formats file
+ * Planes are decoded on demand and kept in a LRU cache bounded by a memory budget,
+ * so that the raw channel does not have to be held in memory
+ * Derived stacks are not virtual: median and binary images, CLIJ2 device buffers (the whole stack is pushed),
+ * the image sent to Cellpose and the components labels (one int per voxel) are full in-memory stacks
+ * @author Héloïse Monnet
+ */
+public class CachedReaderStack extends VirtualStack {
+
+    private final ImageProcessorReader reader;
+    private final int channel;
+    private final int nSlices;
+    private final int bitDepth;
+    private final long budgetBytes;
+    private long cachedBytes = 0;
+    private final LinkedHashMap<Integer, ImageProcessor> cache = new LinkedHashMap<>(16, 0.75f, true);
+
+
+    /**
+     * @param reader reader already initialized on the file
+     * @param channel channel index
+     * @param budgetBytes max memory used by cached planes
+     */
+    public CachedReaderStack(ImageProcessorReader reader, int channel, long budgetBytes) {
+        super(reader.getSizeX(), reader.getSizeY(), null, null);
+        this.reader = reader;
+        this.channel = channel;
+        this.nSlices = reader.getSizeZ();
+        this.bitDepth = reader.getBitsPerPixel() <= 8 ? 8 : (reader.getBitsPerPixel() <= 16 ? 16 : 32);
+        this.budgetBytes = budgetBytes;
+    }
+
+
+    @Override
+    public int getSize() {
+        return(nSlices);
+    }
+
+
+    @Override
+    public int getBitDepth() {
+        return(bitDepth);
+    }
+
+
+    @Override
+    public String getSliceLabel(int n) {
+        return(null);
+    }
+
+
+    @Override
+    public Object getPixels(int n) {
+        return(getProcessor(n).getPixels());
+    }
+
+
+    /**
+     * Return plane n (1-based), from cache or decoded from file
+     * Cached planes are shared between callers, they must not be modified
+     * Reader is not thread-safe, so decoding is serialized
+     */
+    @Override
+    public ImageProcessor getProcessor(int n) {
+        synchronized (cache) {
+            ImageProcessor ip = cache.get(n);
+            if (ip != null)
+                return(ip);
+        }
+        ImageProcessor ip;
+        synchronized (reader) {
+            try {
+                ip = reader.openProcessors(reader.getIndex(n-1, channel, 0))[0];
+            } catch (FormatException | IOException ex) {
+                throw new RuntimeException("Cannot read plane " + n + " of " + reader.getCurrentFile(), ex);
+            }
+        }
+        synchronized (cache) {
+            if (cache.put(n, ip) == null)
+                cachedBytes += planeBytes(ip);
+            // Evict least recently used planes, always keep the one just read
+            Iterator<Map.Entry<Integer, ImageProcessor>> it = cache.entrySet().iterator();
+            while (cachedBytes > budgetBytes && cache.size() > 1 && it.hasNext()) {
+                Map.Entry<Integer, ImageProcessor> eldest = it.next();
+                if (eldest.getKey() == n)
+                    continue;
+                cachedBytes -= planeBytes(eldest.getValue());
+                it.remove();
+            }
+        }
+        return(ip);
+    }
+
+
+    private static long planeBytes(ImageProcessor ip) {
+        return((long) ip.getPixelCount() * (ip.getBitDepth() == 24 ? 4 : Math.max(1, ip.getBitDepth() / 8)));
+    }
+
+
+    /**
+     * Empty cache and close file
+     */
+    public void close() {
+        synchronized (cache) {
+            cache.clear();
+            cachedBytes = 0;
+        }
+        synchronized (reader) {
+            try {
+                reader.close();
+            } catch (IOException ex) {
+                System.out.println(ex.getMessage());
+            }
+        }
+    }
+}
@@ -10,14 +10,148 @@ import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import static java.io.File.separatorChar;
 
 
 public class Cellpose {
 
+    // Slots limiting the Cellpose processes running at once in this JVM
+    private static final Slots slots = new Slots();
+    private static int nSlots = 0;
+
+
+    /**
+     * Run Cellpose once a process slot is free, kill it if it does not end before timeout
+     */
     static void execute(List<String> options, CellposeTaskSettings settings, Consumer<InputStream> outputHandler) throws IOException, InterruptedException {
+        List<String> cellpose_args = new ArrayList<>(Arrays.asList("-m", "cellpose"));
+        cellpose_args.addAll(options);
+        List<String> cmd = buildCommand(cellpose_args, settings);
+
+        Semaphore pool = slots(settings.processes);
+        pool.acquire();
+        try {
+            run(cmd, settings);
+        } finally {
+            pool.release();
+        }
+    }
+
+
+    /**
+     * Shared slots, resized when the number of processes changes
+     * Slots held by running processes stay counted: when shrinking, the limit applies once they are released
+     */
+    private static synchronized Semaphore slots(int n) {
+        if (n > nSlots)
+            slots.release(n - nSlots);
+        else if (n < nSlots)
+            slots.reduce(nSlots - n);
+        nSlots = n;
+        return slots;
+    }
+
+
+    /**
+     * Fair semaphore whose permits can be reduced while some are held
+     */
+    private static class Slots extends Semaphore {
+
+        Slots() {
+            super(0, true);
+        }
+
+
+        void reduce(int n) {
+            reducePermits(n);
+        }
+    }
+
+
+    private static void run(List<String> cmd, CellposeTaskSettings settings) throws IOException, InterruptedException {
+        System.out.println(cmd.toString().replace(",", ""));
+        ProcessBuilder pb = new ProcessBuilder(cmd).redirectErrorStream(true);
+        environment(pb, settings);
+
+        Process p = pb.start();
+        Thread t = new Thread(Thread.currentThread().getName() + "-" + p.hashCode()) {
+            @Override
+            public void run() {
+                BufferedReader stdIn = new BufferedReader(new InputStreamReader(p.getInputStream()));
+                try {
+                    for (String line = stdIn.readLine(); line != null; ) {
+                        System.out.println(line);
+                        line = stdIn.readLine();// you don't want to remove or comment that line! no you don't :P
+                    }
+                } catch (IOException e) {
+                    System.out.println(e.getMessage());
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+
+        boolean finished;
+        try {
+            finished = p.waitFor(settings.timeoutMin, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            kill(p);
+            throw e;
+        }
+        if (!finished) {
+            kill(p);
+            throw new IOException("Cellpose did not finish within " + settings.timeoutMin + " min, process killed");
+        }
+
+        int exitValue = p.exitValue();
+
+        if (exitValue != 0) {
+            System.out.println("Runner " + settings.cellposeEnvDirectory + " exited with value " + exitValue + ". Please check output above for indications of the problem.");
+        } else {
+            System.out.println(settings.envType + " , " + settings.cellposeEnvDirectory + " run finished");
+        }
+
+    }
+
+
+    /**
+     * Limit python threads of the process, so that several processes can share the CPUs
+     */
+    static void environment(ProcessBuilder pb, CellposeTaskSettings settings) {
+        if (settings.threads > 0) {
+            String n = "" + settings.threads;
+            pb.environment().put("OMP_NUM_THREADS", n);
+            pb.environment().put("MKL_NUM_THREADS", n);
+            pb.environment().put("OPENBLAS_NUM_THREADS", n);
+        }
+    }
+
+
+    /**
+     * Kill process and, on Java 9+, its children (python started by cmd.exe on Windows)
+     */
+    static void kill(Process p) {
+        try {
+            Object handle = Process.class.getMethod("toHandle").invoke(p);
+            Stream<?> children = (Stream<?>) handle.getClass().getMethod("descendants").invoke(handle);
+            for (Object child: children.collect(Collectors.toList()))
+                child.getClass().getMethod("destroyForcibly").invoke(child);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Java 8: only the process itself can be killed
+        }
+        p.destroyForcibly();
+    }
+
+
+    /**
+     * Build the command running python of the Cellpose env with the given arguments
+     */
+    static List<String> buildCommand(List<String> python_args, CellposeTaskSettings settings) {
         List<String> cmd = new ArrayList<>();
         List<String> start_cmd = null ;
 
@@ -38,29 +172,28 @@ public class Cellpose {
                 // Activate the conda env
                 conda_activate_cmd = Arrays.asList("CALL", "conda.bat", "activate", settings.cellposeEnvDirectory);
                 cmd.addAll(conda_activate_cmd);
-                // After starting the env we can now use cellpose
+                // After starting the env we can now use python
                 cmd.add("&");// to have a second command
-                List<String> cellpose_args_cmd = Arrays.asList("python", "-Xutf8", "-m", "cellpose");
-                cmd.addAll(cellpose_args_cmd);
+                cmd.addAll(Arrays.asList("python", "-Xutf8"));
                 // input options
-                cmd.addAll(options);
+                cmd.addAll(python_args);
             } else if (IJ.isMacOSX() || IJ.isLinux()) {
                 // instead of conda activate (so much headache!!!) specify the python to use
                 String python_path = settings.cellposeEnvDirectory+separatorChar+"bin"+separatorChar+"python";
-                List<String> cellpose_args_cmd = new ArrayList<>(Arrays.asList( python_path , "-m","cellpose"));
-                cellpose_args_cmd.addAll(options);
+                List<String> python_args_cmd = new ArrayList<>(Arrays.asList(python_path));
+                python_args_cmd.addAll(python_args);
 
                 // convert to a string
-                cellpose_args_cmd = cellpose_args_cmd.stream().map(s -> {
+                python_args_cmd = python_args_cmd.stream().map(s -> {
                     if (s.trim().contains(" "))
                         return "\"" + s.trim() + "\"";
                     return s;
                 }).collect(Collectors.toList());
                 // The last part needs to be sent as a single string, otherwise it does not run
-                String cmdString = cellpose_args_cmd.toString().replace(",","");
+                String cmdString = python_args_cmd.toString().replace(",","");
 
-                // finally add to cmd
-                cmd.add(cmdString.substring(1, cmdString.length()-1));
+                // finally add to cmd, exec so that killing the process kills python and not only bash
+                cmd.add("exec " + cmdString.substring(1, cmdString.length()-1));
             }
 
         } else if (settings.envType.equals("venv")) { // venv
@@ -75,38 +208,7 @@ public class Cellpose {
         } else {
             throw new UnsupportedOperationException("Virtual env type unrecognized!");
         }
-
-        System.out.println(cmd.toString().replace(",", ""));
-        ProcessBuilder pb = new ProcessBuilder(cmd).redirectErrorStream(true);
-
-        Process p = pb.start();
-        Thread t = new Thread(Thread.currentThread().getName() + "-" + p.hashCode()) {
-            @Override
-            public void run() {
-                BufferedReader stdIn = new BufferedReader(new InputStreamReader(p.getInputStream()));
-                try {
-                    for (String line = stdIn.readLine(); line != null; ) {
-                        System.out.println(line);
-                        line = stdIn.readLine();// you don't want to remove or comment that line! no you don't :P
-                    }
-                } catch (IOException e) {
-                    System.out.println(e.getMessage());
-                }
-            }
-        };
-        t.setDaemon(true);
-        t.start();
-
-        p.waitFor();
-
-        int exitValue = p.exitValue();
-
-        if (exitValue != 0) {
-            System.out.println("Runner " + settings.cellposeEnvDirectory + " exited with value " + exitValue + ". Please check output above for indications of the problem.");
-        } else {
-            System.out.println(settings.envType + " , " + settings.cellposeEnvDirectory + " run finished");
-        }
-
+        return cmd;
     }
 
 }
@@ -11,8 +11,12 @@ import ij.plugin.Concatenator;
 import ij.plugin.Duplicator;
 import ij.process.ImageConverter;
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import net.imagej.ImageJ;
 import org.scijava.ItemIO;
 import org.scijava.command.Command;
@@ -23,29 +27,50 @@ import org.scijava.plugin.Plugin;
 public class CellposeSegmentImgPlusAdvanced {
     
     CellposeTaskSettings settings;
-    ImagePlus imp;
-    ImagePlus cellpose_imp;
+    List<ImagePlus> imps;
     
     public CellposeSegmentImgPlusAdvanced(CellposeTaskSettings settings, ImagePlus imp) {
+        this(settings, Collections.singletonList(imp));
+    }
+    
+    /**
+     * Segment several images with a single Cellpose call
+     */
+    public CellposeSegmentImgPlusAdvanced(CellposeTaskSettings settings, List<ImagePlus> imps) {
         this.settings = settings;
-        this.imp = imp;
+        this.imps = imps;
     }
     
     public ImagePlus run() {
+        return runBatch().get(0);
+    }
+    
+    /**
+     * Save all images in the dataset dir, run Cellpose once and split the masks back to their images
+     * Returned list has one labels image per input image (null entries if Cellpose failed)
+     */
+    public List<ImagePlus> runBatch() {
+        return runCellpose(imps);
+    }
+    
+    /**
+     * Run Cellpose on given images
+     */
+    private List<ImagePlus> runCellpose(List<ImagePlus> imps) {
         
-        Calibration cal = imp.getCalibration();
-
-        // Create temp folder to temporarily save the current time-point of the imp
+        // Create a workspace of this call only to temporarily save the current time-point of the imp,
+        // other calls of this or another Fiji may run at the same time
+        // Raw exchange with the worker goes through shared memory when available
         String tempDir = IJ.getDirectory("Temp");
-        File cellposeTempDir = new File(tempDir, "cellposeTemp");
-        cellposeTempDir.mkdir();
-
-        // When plugin crashes, image files can pile up in the temp folder, so we make sure to clear everything
-        File[] contents = cellposeTempDir.listFiles();
-        if (contents != null) {
-            for (File f : contents) {
-                f.delete();
-            }
+        boolean rawExchange = settings.useWorker && settings.useRawExchange;
+        File baseDir = rawExchange ? NpyIO.exchangeDir(tempDir) : new File(tempDir, "cellposeTemp");
+        String ext = rawExchange ? ".npy" : ".tif";
+        File cellposeTempDir;
+        try {
+            cellposeTempDir = workspace(baseDir);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return new ArrayList<>(Collections.nCopies(imps.size(), (ImagePlus) null));
         }
 
         // Add temp folder to the settings
@@ -53,80 +78,148 @@ public class CellposeSegmentImgPlusAdvanced {
 
 
         if (settings.use3D == true) {
-            if (imp.getNSlices() == 1) 
+            if (imps.get(0).getNSlices() == 1) 
                 System.out.println("WARNING: Can't use 3D mode on 2D image. 2D mode will be used");
                 settings.use3D(false);
         }
 
-        // Settings are done, we can now process the imp with Cellpose
+        // Settings are done, we can now process the imps with Cellpose
         CellposeTask cellposeTask = new CellposeTask();
         cellposeTask.setSettings(settings);
         
+        List<ImagePlus> cellpose_imps = new ArrayList<>(Collections.nCopies(imps.size(), (ImagePlus) null));
+        
+        // We'll use lists to store paths of saved input and output masks
+        List<File> t_imp_paths = new ArrayList<>();
+        List<File> cellpose_masks_paths = new ArrayList<>();
+        
         try {
-            // Can't process time-lapse directly, so we'll save one time-point after another
-            int impFrames = imp.getNFrames();
-
-            // We'll use lists to store paths of saved input, output masks and outlines
-            List<File> t_imp_paths = new ArrayList<>();
-            List<File> cellpose_masks_paths = new ArrayList<>();
-            List<File> cellpose_outlines_paths = new ArrayList<>();
-
-            for (int t_idx = 1; t_idx <= impFrames; t_idx++) {
-                // Duplicate all channels and all z-slices for a defined time-point
-                ImagePlus t_imp = new Duplicator().run(imp, 1, imp.getNChannels(), 1, imp.getNSlices(), t_idx, t_idx);
-                // Save the current t_imp into the cellposeTempDir
-                File t_imp_path = new File(cellposeTempDir, imp.getShortTitle() + "-t" + t_idx + ".tif");
-                FileSaver fs = new FileSaver(t_imp);
-                fs.saveAsTiff(t_imp_path.toString());
-                System.out.println(t_imp_path.toString());
-                // Add to list of paths to delete at the end of operations
-                t_imp_paths.add(t_imp_path);
+            for (int i = 0; i < imps.size(); i++) {
+                ImagePlus imp = imps.get(i);
+                // Can't process time-lapse directly, so we'll save one time-point after another
+                for (int t_idx = 1; t_idx <= imp.getNFrames(); t_idx++) {
+                    // Duplicate all channels and all z-slices for a defined time-point
+                    ImagePlus t_imp = (imp.getNFrames() == 1) ? imp : new Duplicator().run(imp, 1, imp.getNChannels(), 1, imp.getNSlices(), t_idx, t_idx);
+                    // Save the current t_imp into the cellposeTempDir
+                    // (named by image index in the batch, as titles may be identical)
+                    String t_name = "img" + i + "-t" + t_idx;
+                    File t_imp_path = new File(cellposeTempDir, t_name + ext);
+                    if (rawExchange) {
+                        NpyIO.write(t_imp, t_imp_path);
+                    } else {
+                        FileSaver fs = new FileSaver(t_imp);
+                        fs.saveAsTiff(t_imp_path.toString());
+                    }
+                    System.out.println(t_imp_path.toString());
+                    t_imp_paths.add(t_imp_path);
 
-                // Prepare path of the cellpose mask output
-                File cellpose_imp_path = new File(cellposeTempDir, imp.getShortTitle() + "-t" + t_idx + "_cp_masks" + ".tif");
-                cellpose_masks_paths.add(cellpose_imp_path);
-                // Cellpose also creates a txt file (probably to be used with a script to import ROI in imagej), so we'll delete it too
-                // (to generate ROIs from the label image we can use https://github.com/BIOP/ijp-larome)
-                File cellpose_outlines_path = new File(cellposeTempDir, imp.getShortTitle() + "-t" + t_idx + "_cp_outlines" + ".txt");
-                cellpose_outlines_paths.add(cellpose_outlines_path);
+                    // Prepare path of the cellpose mask output
+                    File cellpose_imp_path = new File(cellposeTempDir, t_name + "_cp_masks" + ext);
+                    cellpose_masks_paths.add(cellpose_imp_path);
+                }
             }
 
-            // Run CellPose
-            cellposeTask.run();
-
-            // Open all the cellpose_mask and store each imp within an ArrayList
-            ArrayList<ImagePlus> imps = new ArrayList<>(impFrames);
-            for (int t_idx = 1; t_idx <= impFrames; t_idx++) {
-                ImagePlus cellpose_t_imp = IJ.openImage(cellpose_masks_paths.get(t_idx - 1).toString());
-                // make sure to make a 16-bit imp
-                // (issue with time-lapse, first frame have less than 254 objects and latest have more)
-                if (cellpose_t_imp.getBitDepth() != 16) {
-                    if (cellpose_t_imp.getNSlices() > 1) {
-                        new ImageConverter(cellpose_t_imp).convertToGray16();
-                    } else {
-                        cellpose_t_imp.setProcessor(cellpose_t_imp.getProcessor().convertToShort(false));
-                    }
+            if (settings.useWorker) {
+                // Send each image to a free persistent worker, model is already loaded
+                CellposeWorker worker = CellposeWorker.acquire(settings);
+                try {
+                    for (int p_idx = 0; p_idx < t_imp_paths.size(); p_idx++)
+                        worker.segment(t_imp_paths.get(p_idx), cellpose_masks_paths.get(p_idx), settings.diameter, settings.stitch_threshold);
+                } finally {
+                    CellposeWorker.release(worker);
                 }
-                imps.add(cellpose_t_imp.duplicate());
+            } else {
+                // Run CellPose once for the whole batch
+                cellposeTask.run();
             }
-            // Convert the ArrayList to an imp
-            // https://stackoverflow.com/questions/9572795/convert-list-to-array-in-java
-            ImagePlus[] impsArray = imps.toArray(new ImagePlus[0]);
-            cellpose_imp = Concatenator.run(impsArray);
-            cellpose_imp.setCalibration(cal);
-            cellpose_imp.setTitle(imp.getShortTitle() + "-cellpose");
 
-            // Delete the created files and folder
-            for (int t_idx = 1; t_idx <= impFrames; t_idx++) {
-                t_imp_paths.get(t_idx - 1).delete();
-                cellpose_masks_paths.get(t_idx - 1).delete();
-                cellpose_outlines_paths.get(t_idx - 1).delete();
+            // Open all the cellpose_mask of each imp and store them within an ArrayList
+            // A missing or unreadable mask only leaves the entry of its image null
+            int path_idx = 0;
+            for (int i = 0; i < imps.size(); i++) {
+                ImagePlus imp = imps.get(i);
+                int impFrames = imp.getNFrames();
+                ArrayList<ImagePlus> t_imps = new ArrayList<>(impFrames);
+                for (int t_idx = 1; t_idx <= impFrames; t_idx++) {
+                    ImagePlus cellpose_t_imp = readMask(cellpose_masks_paths.get(path_idx++), rawExchange);
+                    if (cellpose_t_imp == null)
+                        break;
+                    t_imps.add(cellpose_t_imp);
+                }
+                if (t_imps.size() < impFrames)
+                    continue;
+                // Convert the ArrayList to an imp
+                // https://stackoverflow.com/questions/9572795/convert-list-to-array-in-java
+                ImagePlus[] impsArray = t_imps.toArray(new ImagePlus[0]);
+                ImagePlus cellpose_imp = Concatenator.run(impsArray);
+                cellpose_imp.setCalibration(imp.getCalibration());
+                cellpose_imp.setTitle(imp.getShortTitle() + "-cellpose");
+                cellpose_imps.set(i, cellpose_imp);
             }
-            cellposeTempDir.delete();
        
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            // Delete the workspace, with any other file Cellpose may have written in it
+            deleteDir(cellposeTempDir);
+        }
+        return cellpose_imps;
+    }
+    
+    /**
+     * Open a Cellpose mask as a 16-bit imp, null if Cellpose did not write it or it can't be read
+     */
+    private static ImagePlus readMask(File mask_path, boolean rawExchange) {
+        if (!mask_path.exists()) {
+            System.out.println("Cellpose mask not found: " + mask_path);
+            return null;
+        }
+        ImagePlus cellpose_t_imp;
+        try {
+            cellpose_t_imp = rawExchange ? NpyIO.read(mask_path) : IJ.openImage(mask_path.toString());
+        } catch (Exception e) {
+            System.out.println("Cellpose mask can't be read: " + mask_path + " (" + e + ")");
+            return null;
+        }
+        if (cellpose_t_imp == null) {
+            System.out.println("Cellpose mask can't be read: " + mask_path);
+            return null;
+        }
+        // make sure to make a 16-bit imp
+        // (issue with time-lapse, first frame have less than 254 objects and latest have more)
+        if (cellpose_t_imp.getBitDepth() != 16) {
+            if (cellpose_t_imp.getNSlices() > 1) {
+                new ImageConverter(cellpose_t_imp).convertToGray16();
+            } else {
+                cellpose_t_imp.setProcessor(cellpose_t_imp.getProcessor().convertToShort(false));
+            }
+        }
+        return cellpose_t_imp.duplicate();
+    }
+    
+    /**
+     * New workspace in base dir
+     * Workspaces left by crashed runs are deleted after a day, recent ones may belong to running calls
+     */
+    private static File workspace(File baseDir) throws IOException {
+        baseDir.mkdirs();
+        File[] contents = baseDir.listFiles();
+        if (contents != null) {
+            long expired = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1);
+            for (File f : contents) {
+                if (f.lastModified() < expired)
+                    deleteDir(f);
+            }
+        }
+        return Files.createTempDirectory(baseDir.toPath(), "run-").toFile();
+    }
+    
+    private static void deleteDir(File dir) {
+        File[] contents = dir.listFiles();
+        if (contents != null) {
+            for (File f : contents)
+                deleteDir(f);
         }
-        return cellpose_imp;
+        dir.delete();
     }
-}
\ No newline at end of file
+}
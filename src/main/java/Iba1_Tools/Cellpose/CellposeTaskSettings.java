@@ -24,6 +24,13 @@ public class CellposeTaskSettings {
     boolean omni = false;
     boolean cluster = false;
     boolean verbose = false;
+    boolean useWorker = false;
+    boolean useStubWorker = false;
+    boolean useRawExchange = false;
+    // Max Cellpose processes running at once, threads of each (0 = python default), minutes before a process is killed
+    int processes = 1;
+    int threads = 0;
+    long timeoutMin = 60;
     
     
     public CellposeTaskSettings(String model, int ch1, int diameter, String cellposeEnvDirectory) {
@@ -122,5 +129,35 @@ public class CellposeTaskSettings {
         this.verbose = verbose;
         return this;
     }
+    
+    public CellposeTaskSettings useWorker(boolean useWorker) {
+        this.useWorker = useWorker;
+        return this;
+    }
+    
+    public CellposeTaskSettings useStubWorker(boolean useStubWorker) {
+        this.useStubWorker = useStubWorker;
+        return this;
+    }
+    
+    public CellposeTaskSettings useRawExchange(boolean useRawExchange) {
+        this.useRawExchange = useRawExchange;
+        return this;
+    }
+    
+    public CellposeTaskSettings setProcesses(int processes) {
+        this.processes = Math.max(1, processes);
+        return this;
+    }
+    
+    public CellposeTaskSettings setThreads(int threads) {
+        this.threads = Math.max(0, threads);
+        return this;
+    }
+    
+    public CellposeTaskSettings setTimeout(long timeoutMin) {
+        this.timeoutMin = timeoutMin;
+        return this;
+    }
        
 }
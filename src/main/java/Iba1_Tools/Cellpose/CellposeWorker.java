@@ -0,0 +1,338 @@
+package Iba1_Tools.Cellpose;
+
+import ij.IJ;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Long-lived Cellpose python process keeping the model in memory
+ * Started once per Fiji session, requests and responses are tab-separated lines on stdin/stdout
+ * (see cellpose_worker.py for the protocol)
+ * Up to settings.processes workers run at once, each one serving a single request at a time
+ */
+public class CellposeWorker {
+
+    // Session workers, busy ones of previous settings included until they are released
+    private static final List<CellposeWorker> workers = new ArrayList<>();
+    // Idle workers of the current settings, to be reused
+    private static final Deque<CellposeWorker> idle = new ArrayDeque<>();
+    private static Semaphore free;
+    private static String poolKey;
+    private static boolean hook = false;
+    // Worker script on disk, not guarded by the class lock (a starting worker must not wait for other workers)
+    private static final Object SCRIPT_LOCK = new Object();
+    private static File script;
+
+    // Loading torch + model can be slow
+    private static final long START_TIMEOUT_S = 300;
+    private static final long PING_TIMEOUT_S = 10;
+
+    private final CellposeTaskSettings settings;
+    private final String key;
+    private final Semaphore pool;
+    private Process process;
+    private BufferedWriter requests;
+    private final BlockingQueue<String> responses = new LinkedBlockingQueue<>();
+
+
+    private CellposeWorker(CellposeTaskSettings settings, Semaphore pool) {
+        this.settings = settings;
+        this.key = workerKey(settings);
+        this.pool = pool;
+    }
+
+
+    /**
+     * Wait for a free session worker, must be given back with release()
+     * If the model settings changed, workers of the previous settings are retired:
+     * idle ones right away, busy ones when they are released
+     */
+    public static CellposeWorker acquire(CellposeTaskSettings settings) throws InterruptedException {
+        while (true) {
+            Semaphore pool;
+            List<CellposeWorker> retired = new ArrayList<>();
+            synchronized (CellposeWorker.class) {
+                if (!workerKey(settings).equals(poolKey)) {
+                    retired.addAll(idle);
+                    workers.removeAll(idle);
+                    idle.clear();
+                    poolKey = workerKey(settings);
+                    free = new Semaphore(settings.processes, true);
+                }
+                if (!hook) {
+                    Runtime.getRuntime().addShutdownHook(new Thread(CellposeWorker::shutdownAll, "cellpose-worker-shutdown"));
+                    hook = true;
+                }
+                pool = free;
+            }
+            // Outside the class lock, stopping a process can take a while
+            for (CellposeWorker worker: retired)
+                worker.shutdown();
+            pool.acquire();
+            synchronized (CellposeWorker.class) {
+                if (pool != free) {
+                    // Pool was replaced while waiting
+                    pool.release();
+                    continue;
+                }
+                CellposeWorker worker = idle.poll();
+                if (worker == null) {
+                    worker = new CellposeWorker(settings, pool);
+                    workers.add(worker);
+                }
+                return worker;
+            }
+        }
+    }
+
+
+    /**
+     * Give back a worker taken with acquire()
+     * A worker of previous settings is stopped instead of being reused
+     */
+    public static void release(CellposeWorker worker) {
+        boolean retire = false;
+        synchronized (CellposeWorker.class) {
+            if (workers.contains(worker)) {
+                if (worker.key.equals(poolKey)) {
+                    idle.push(worker);
+                } else {
+                    workers.remove(worker);
+                    retire = true;
+                }
+            }
+        }
+        worker.pool.release();
+        if (retire)
+            worker.shutdown();
+    }
+
+
+    /**
+     * Stop all session workers
+     * Busy workers are stopped once their current request is done
+     */
+    public static void shutdownAll() {
+        List<CellposeWorker> stopped;
+        synchronized (CellposeWorker.class) {
+            stopped = new ArrayList<>(workers);
+            workers.clear();
+            idle.clear();
+            poolKey = null;
+        }
+        for (CellposeWorker worker: stopped)
+            worker.shutdown();
+    }
+
+
+    private static String workerKey(CellposeTaskSettings settings) {
+        return settings.cellposeEnvDirectory + "|" + settings.envType + "|" + settings.model + "|" + settings.ch1 + "|" + settings.ch2 + "|" +
+                settings.flow_threshold + "|" + settings.cellprob_threshold + "|" + settings.useGpu + "|" + settings.useStubWorker + "|" +
+                settings.processes + "|" + settings.threads;
+    }
+
+
+    /**
+     * Start the python process and wait for the model to be loaded
+     */
+    public synchronized void start() throws IOException {
+        if (process != null && process.isAlive())
+            return;
+
+        List<String> args = new ArrayList<>(Arrays.asList(script().getAbsolutePath(),
+                "--pretrained_model", settings.model, "--chan", "" + settings.ch1, "--chan2", "" + settings.ch2,
+                "--flow_threshold", "" + settings.flow_threshold, "--cellprob_threshold", "" + settings.cellprob_threshold));
+        if (settings.useGpu)
+            args.add("--use_gpu");
+        if (settings.useStubWorker)
+            args.add("--stub");
+        List<String> cmd = Cellpose.buildCommand(args, settings);
+        System.out.println("Starting Cellpose worker: " + cmd.toString().replace(",", ""));
+
+        ProcessBuilder pb = new ProcessBuilder(cmd);
+        Cellpose.environment(pb, settings);
+        process = pb.start();
+        requests = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+        responses.clear();
+        Process p = process;
+
+        // Responses
+        Thread out = new Thread("cellpose-worker-stdout") {
+            @Override
+            public void run() {
+                BufferedReader stdOut = new BufferedReader(new InputStreamReader(p.getInputStream(), StandardCharsets.UTF_8));
+                try {
+                    for (String line = stdOut.readLine(); line != null; line = stdOut.readLine())
+                        responses.add(line);
+                } catch (IOException e) {
+                    System.out.println(e.getMessage());
+                }
+            }
+        };
+        // Logs
+        Thread err = new Thread("cellpose-worker-stderr") {
+            @Override
+            public void run() {
+                BufferedReader stdErr = new BufferedReader(new InputStreamReader(p.getErrorStream(), StandardCharsets.UTF_8));
+                try {
+                    for (String line = stdErr.readLine(); line != null; line = stdErr.readLine())
+                        System.out.println(line);
+                } catch (IOException e) {
+                    System.out.println(e.getMessage());
+                }
+            }
+        };
+        out.setDaemon(true);
+        err.setDaemon(true);
+        out.start();
+        err.start();
+
+        String ready = readResponse(START_TIMEOUT_S);
+        if (!"READY".equals(ready)) {
+            stop();
+            throw new IOException("Cellpose worker did not start, got: " + ready);
+        }
+        System.out.println("Cellpose worker ready");
+    }
+
+
+    /**
+     * Script is shipped in the jar, python needs it on disk
+     * Copied once per session, so that a starting worker does not overwrite the script another one is reading
+     */
+    private static File script() throws IOException {
+        synchronized (SCRIPT_LOCK) {
+            if (script == null || !script.exists()) {
+                File file = new File(IJ.getDirectory("Temp"), "iba1_cellpose_worker.py");
+                try (InputStream in = CellposeWorker.class.getResourceAsStream("/cellpose_worker.py")) {
+                    Files.copy(in, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+                script = file;
+            }
+            return script;
+        }
+    }
+
+
+    /**
+     * Health check: process alive and answering
+     */
+    public synchronized boolean isHealthy() {
+        if (process == null || !process.isAlive())
+            return false;
+        try {
+            send("PING");
+            return "PONG".equals(readResponse(PING_TIMEOUT_S));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+
+    /**
+     * Segment input image, write labels in output
+     * The worker is (re)started if needed, and the request retried once if the worker crashed while processing it
+     */
+    public synchronized File segment(File input, File output, int diameter, double stitchThreshold) throws IOException {
+        String request = String.join("\t", "SEGMENT", input.getAbsolutePath(), output.getAbsolutePath(), "" + diameter, "" + stitchThreshold);
+        for (int attempt = 1; ; attempt++) {
+            if (!isHealthy()) {
+                stop();
+                start();
+            }
+            String response;
+            try {
+                send(request);
+                response = readResponse(TimeUnit.MINUTES.toSeconds(settings.timeoutMin));
+            } catch (IOException e) {
+                response = null;
+            }
+            if (response != null && response.startsWith("OK\t"))
+                return new File(response.substring(3));
+            if (response != null && response.startsWith("ERROR\t"))
+                throw new IOException("Cellpose worker failed on " + input.getName() + ": " + response.substring(6));
+            // No answer: worker crashed or hung
+            stop();
+            if (attempt == 2)
+                throw new IOException("Cellpose worker did not answer for " + input.getName());
+            System.out.println("Cellpose worker lost, restarting it");
+        }
+    }
+
+
+    /**
+     * Ask the worker to quit, kill it if it does not
+     */
+    public synchronized void shutdown() {
+        if (process == null)
+            return;
+        if (process.isAlive()) {
+            try {
+                send("QUIT");
+                readResponse(PING_TIMEOUT_S);
+                process.waitFor(PING_TIMEOUT_S, TimeUnit.SECONDS);
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        stop();
+        System.out.println("Cellpose worker stopped");
+    }
+
+
+    private void stop() {
+        if (process != null && process.isAlive())
+            Cellpose.kill(process);
+        process = null;
+    }
+
+
+    private void send(String request) throws IOException {
+        if (process == null)
+            throw new IOException("Cellpose worker not started");
+        requests.write(request);
+        requests.newLine();
+        requests.flush();
+    }
+
+
+    /**
+     * Next response line, null if none came before timeout or the process died
+     */
+    private String readResponse(long timeoutS) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutS);
+        try {
+            while (System.nanoTime() < deadline) {
+                String line = responses.poll(1, TimeUnit.SECONDS);
+                if (line != null)
+                    return line;
+                if (process == null || !process.isAlive())
+                    return responses.poll();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for Cellpose worker", e);
+        }
+        return null;
+    }
+}
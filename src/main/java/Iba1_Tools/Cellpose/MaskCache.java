@@ -0,0 +1,223 @@
+package Iba1_Tools.Cellpose;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * Persistent cache of Cellpose labels images
+ * Entries are keyed by a SHA-256 of the whole input image pixels and of the Cellpose settings changing the output,
+ * stored gzip-compressed in whole image coordinates with the region Cellpose was run on,
+ * and evicted least recently used first when the cache exceeds its size
+ * An entry is reused for any region it contains, so that cropping the Cellpose input does not tie entries to the cells mask
+ */
+public class MaskCache {
+
+    private static final String EXT = ".labels.gz";
+    // Entries format, older entries are dropped when read
+    private static final int MAGIC = 0x49424132;
+
+    private final File dir;
+    private final long maxBytes;
+
+
+    public MaskCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        dir.mkdirs();
+    }
+
+
+    /**
+     * Key of a whole input image segmented with given settings
+     * Stub masks, Cellpose versions and model files (size and date) have keys of their own
+     */
+    public static String key(ImagePlus imp, CellposeTaskSettings settings) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        String params = settings.model + "|" + settings.ch1 + "|" + settings.ch2 + "|" + settings.diameter + "|" +
+                settings.flow_threshold + "|" + settings.cellprob_threshold + "|" + settings.stitch_threshold + "|" +
+                settings.use3D + "|" + settings.useStubWorker + "|" + settings.version + "|" + modelStamp(settings.model) + "|" + imp.getWidth() + "x" + imp.getHeight() + "x" + imp.getStackSize() + "x" + imp.getBitDepth();
+        md.update(params.getBytes(StandardCharsets.UTF_8));
+
+        ImageStack stack = imp.getStack();
+        for (int n = 1; n <= stack.getSize(); n++) {
+            Object pixels = stack.getPixels(n);
+            if (pixels instanceof byte[]) {
+                md.update((byte[]) pixels);
+            } else if (pixels instanceof short[]) {
+                short[] px = (short[]) pixels;
+                ByteBuffer buf = ByteBuffer.allocate(px.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+                buf.asShortBuffer().put(px);
+                md.update(buf.array());
+            } else if (pixels instanceof float[]) {
+                float[] px = (float[]) pixels;
+                ByteBuffer buf = ByteBuffer.allocate(px.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+                buf.asFloatBuffer().put(px);
+                md.update(buf.array());
+            } else {
+                int[] px = (int[]) pixels;
+                ByteBuffer buf = ByteBuffer.allocate(px.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+                buf.asIntBuffer().put(px);
+                md.update(buf.array());
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        for (byte b: md.digest())
+            sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
+
+
+    /**
+     * Size and modification date of the model file, empty for a built-in model name
+     */
+    private static String modelStamp(String model) {
+        File file = new File(model);
+        return(file.isFile() ? file.length() + "@" + file.lastModified() : "");
+    }
+
+
+    /**
+     * Cached labels image, null if not in cache or if its Cellpose region does not contain region
+     * @param region {x, y, z, width, height, depth} of the input image Cellpose would be run on
+     */
+    public ImagePlus get(String key, int[] region) {
+        File file = new File(dir, key + EXT);
+        if (!file.exists())
+            return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file), 1 << 16)))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException("unknown format");
+            int[] cached = new int[6];
+            for (int k = 0; k < cached.length; k++)
+                cached[k] = in.readInt();
+            if (!contains(cached, region)) {
+                System.out.println("Cellpose masks in cache computed on a smaller region: " + key);
+                return null;
+            }
+            int width = in.readInt();
+            int height = in.readInt();
+            int nSlices = in.readInt();
+            int bitDepth = in.readInt();
+            ImageStack stack = new ImageStack(width, height);
+            for (int n = 0; n < nSlices; n++) {
+                ImageProcessor ip = (bitDepth == 16) ? new ShortProcessor(width, height) : new FloatProcessor(width, height);
+                for (int i = 0; i < width * height; i++) {
+                    if (bitDepth == 16)
+                        ip.set(i, in.readUnsignedShort());
+                    else
+                        ip.setf(i, in.readFloat());
+                }
+                stack.addSlice(ip);
+            }
+            // Recently used entries are evicted last
+            file.setLastModified(System.currentTimeMillis());
+            System.out.println("Cellpose masks found in cache: " + key);
+            return new ImagePlus(key, stack);
+        } catch (IOException e) {
+            System.out.println("Cannot read cached masks " + file + ": " + e.getMessage());
+            file.delete();
+            return null;
+        }
+    }
+
+
+    /**
+     * Whether region a {x, y, z, width, height, depth} contains region b
+     */
+    private static boolean contains(int[] a, int[] b) {
+        for (int k = 0; k < 3; k++)
+            if (b[k] < a[k] || b[k] + b[k+3] > a[k] + a[k+3])
+                return false;
+        return true;
+    }
+
+
+    /**
+     * Store labels image in whole image coordinates with the region Cellpose was run on,
+     * then evict old entries if the cache is too large
+     */
+    public void put(String key, ImagePlus labels, int[] region) {
+        File file = new File(dir, key + EXT);
+        File tmp = new File(dir, key + "." + Thread.currentThread().getId() + ".tmp");
+        int bitDepth = (labels.getBitDepth() == 32) ? 32 : 16;
+        try {
+            try (OutputStream gz = new GZIPOutputStream(new FileOutputStream(tmp), 1 << 16) {{ def.setLevel(Deflater.BEST_SPEED); }};
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(gz, 1 << 16))) {
+                out.writeInt(MAGIC);
+                for (int v: region)
+                    out.writeInt(v);
+                out.writeInt(labels.getWidth());
+                out.writeInt(labels.getHeight());
+                out.writeInt(labels.getStackSize());
+                out.writeInt(bitDepth);
+                ImageStack stack = labels.getStack();
+                for (int n = 1; n <= stack.getSize(); n++) {
+                    ImageProcessor ip = stack.getProcessor(n);
+                    for (int i = 0; i < ip.getPixelCount(); i++) {
+                        if (bitDepth == 16)
+                            out.writeShort(ip.get(i));
+                        else
+                            out.writeFloat(ip.getf(i));
+                    }
+                }
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Cannot cache masks " + file + ": " + e.getMessage());
+            tmp.delete();
+            return;
+        }
+        evict();
+    }
+
+
+    /**
+     * Delete least recently used entries until the cache fits its size
+     */
+    private synchronized void evict() {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(EXT));
+        if (files == null)
+            return;
+        long total = 0;
+        for (File f: files)
+            total += f.length();
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File f: files) {
+            if (total <= maxBytes)
+                break;
+            long size = f.length();
+            if (f.delete())
+                total -= size;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package Iba1_Tools.Cellpose;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * Raw little-endian exchange of image stacks with python, in npy format (version 1.0, C order)
+ * Pixels are written and read through a file channel, plane by plane, without any encoding
+ * (no memory-mapped buffers: they keep files open until garbage collected and Windows can't delete them)
+ */
+public class NpyIO {
+
+    private static final byte[] MAGIC = {(byte) 0x93, 'N', 'U', 'M', 'P', 'Y'};
+    private static final Pattern DESCR = Pattern.compile("'descr':\\s*'([<>|=]?)(\\w\\d+)'");
+    private static final Pattern SHAPE = Pattern.compile("'shape':\\s*\\(([^)]*)\\)");
+    private static final Pattern ORDER = Pattern.compile("'fortran_order':\\s*(True|False)");
+
+
+    /**
+     * Directory for exchanged files: shared memory if available, Fiji temp dir otherwise
+     * Named after the user, as /dev/shm is shared by all users of the machine
+     */
+    public static File exchangeDir(String tempDir) {
+        File shm = new File("/dev/shm");
+        File base = (shm.isDirectory() && shm.canWrite()) ? shm : new File(tempDir);
+        String user = System.getProperty("user.name", "").replaceAll("[^A-Za-z0-9._-]", "_");
+        return new File(base, user.isEmpty() ? "iba1_cellpose" : "iba1_cellpose-" + user);
+    }
+
+
+    /**
+     * Write all planes of an image, shape (planes, height, width), or (height, width) for a single plane
+     */
+    public static void write(ImagePlus imp, File file) throws IOException {
+        ImageStack stack = imp.getStack();
+        int width = imp.getWidth();
+        int height = imp.getHeight();
+        int nPlanes = stack.getSize();
+        String descr;
+        int bytesPerPixel;
+        switch (imp.getBitDepth()) {
+            case 8: descr = "|u1"; bytesPerPixel = 1; break;
+            case 16: descr = "<u2"; bytesPerPixel = 2; break;
+            case 32: descr = "<f4"; bytesPerPixel = 4; break;
+            default: throw new IOException("Unsupported bit depth for npy exchange: " + imp.getBitDepth());
+        }
+        byte[] header = header(descr, nPlanes, height, width);
+        long planeBytes = (long) width * height * bytesPerPixel;
+
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            writeFully(ch, ByteBuffer.wrap(header));
+            ByteBuffer buf = ByteBuffer.allocate((int) planeBytes).order(ByteOrder.LITTLE_ENDIAN);
+            for (int p = 0; p < nPlanes; p++) {
+                buf.clear();
+                Object pixels = stack.getPixels(p+1);
+                if (pixels instanceof byte[])
+                    buf.put((byte[]) pixels);
+                else if (pixels instanceof short[])
+                    buf.asShortBuffer().put((short[]) pixels);
+                else
+                    buf.asFloatBuffer().put((float[]) pixels);
+                buf.position(0).limit((int) planeBytes);
+                writeFully(ch, buf);
+            }
+        }
+    }
+
+
+    /**
+     * Read a 2D or 3D npy array as a stack
+     * Integers give a 16-bit stack (labels above 65535 are refused), floats a 32-bit stack
+     */
+    public static ImagePlus read(File file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer pre = ByteBuffer.allocate(10).order(ByteOrder.LITTLE_ENDIAN);
+            ch.read(pre, 0);
+            for (int i = 0; i < MAGIC.length; i++)
+                if (pre.get(i) != MAGIC[i])
+                    throw new IOException(file + " is not a npy file");
+            int headerLen = pre.getShort(8) & 0xffff;
+            ByteBuffer headerBuf = ByteBuffer.allocate(headerLen);
+            ch.read(headerBuf, 10);
+            String header = new String(headerBuf.array(), StandardCharsets.US_ASCII);
+
+            Matcher descr = DESCR.matcher(header);
+            Matcher shape = SHAPE.matcher(header);
+            Matcher order = ORDER.matcher(header);
+            if (!descr.find() || !shape.find() || !order.find())
+                throw new IOException("Cannot parse npy header of " + file + ": " + header);
+            if (order.group(1).equals("True"))
+                throw new IOException("Fortran order not supported in " + file);
+            ByteOrder byteOrder = descr.group(1).equals(">") ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+            String type = descr.group(2);
+            int[] dims = parseShape(shape.group(1));
+            int nPlanes = (dims.length == 3) ? dims[0] : 1;
+            int height = dims[dims.length-2];
+            int width = dims[dims.length-1];
+            int bytesPerPixel = Integer.parseInt(type.substring(1));
+            long planeBytes = (long) width * height * bytesPerPixel;
+            long offset = 10 + headerLen;
+
+            ImageStack stack = new ImageStack(width, height);
+            ByteBuffer buf = ByteBuffer.allocate((int) planeBytes).order(byteOrder);
+            for (int p = 0; p < nPlanes; p++) {
+                buf.clear();
+                long pos = offset + p * planeBytes;
+                while (buf.hasRemaining())
+                    if (ch.read(buf, pos + buf.position()) < 0)
+                        throw new IOException(file + " is truncated");
+                buf.flip();
+                stack.addSlice(readPlane(buf, type, width, height));
+            }
+            return new ImagePlus(file.getName(), stack);
+        }
+    }
+
+
+    private static ImageProcessor readPlane(ByteBuffer buf, String type, int width, int height) throws IOException {
+        int n = width * height;
+        switch (type) {
+            case "u1":
+            case "i1":
+                byte[] bytes = new byte[n];
+                buf.get(bytes);
+                return new ByteProcessor(width, height, bytes).convertToShort(false);
+            case "u2":
+            case "i2":
+                short[] shorts = new short[n];
+                buf.asShortBuffer().get(shorts);
+                return new ShortProcessor(width, height, shorts, null);
+            case "u4":
+            case "i4":
+            case "u8":
+            case "i8":
+                // Cellpose labels: kept as they are in 16-bit, never rescaled
+                short[] labels = new short[n];
+                for (int i = 0; i < n; i++) {
+                    long v;
+                    if (type.equals("u4"))
+                        v = buf.getInt() & 0xffffffffL;
+                    else if (type.equals("i4"))
+                        v = buf.getInt();
+                    else
+                        v = buf.getLong();
+                    if (v < 0 || v > 65535)
+                        throw new IOException("Label " + v + " does not fit in a 16-bit image");
+                    labels[i] = (short) v;
+                }
+                return new ShortProcessor(width, height, labels, null);
+            case "f4":
+                float[] floats = new float[n];
+                buf.asFloatBuffer().get(floats);
+                return new FloatProcessor(width, height, floats);
+            default:
+                throw new IOException("Unsupported npy type: " + type);
+        }
+    }
+
+
+    private static void writeFully(FileChannel ch, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining())
+            ch.write(buf);
+    }
+
+
+    private static int[] parseShape(String shape) throws IOException {
+        String[] parts = shape.split(",");
+        int n = 0;
+        int[] dims = new int[parts.length];
+        for (String part: parts)
+            if (!part.trim().isEmpty())
+                dims[n++] = Integer.parseInt(part.trim());
+        if (n != 2 && n != 3)
+            throw new IOException("Only 2D and 3D npy arrays are supported, shape: (" + shape + ")");
+        int[] out = new int[n];
+        System.arraycopy(dims, 0, out, 0, n);
+        return out;
+    }
+
+
+    /**
+     * npy 1.0 header, padded with spaces so that data starts on a 64 bytes boundary
+     */
+    private static byte[] header(String descr, int nPlanes, int height, int width) {
+        String shape = (nPlanes == 1) ? height + ", " + width : nPlanes + ", " + height + ", " + width;
+        String dict = "{'descr': '" + descr + "', 'fortran_order': False, 'shape': (" + shape + "), }";
+        int total = 10 + dict.length() + 1;
+        int padding = (64 - total % 64) % 64;
+        StringBuilder sb = new StringBuilder(dict);
+        for (int i = 0; i < padding; i++)
+            sb.append(' ');
+        sb.append('\n');
+        byte[] dictBytes = sb.toString().getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer buf = ByteBuffer.allocate(10 + dictBytes.length).order(ByteOrder.LITTLE_ENDIAN);
+        buf.put(MAGIC).put((byte) 1).put((byte) 0).putShort((short) dictBytes.length).put(dictBytes);
+        return buf.array();
+    }
+}
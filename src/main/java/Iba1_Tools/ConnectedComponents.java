@@ -0,0 +1,289 @@
+package Iba1_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.stream.IntStream;
+
+
+/**
+ * 3D connected components (26-connectivity) of a binary stack, labelled in parallel over z-slabs
+ * Each slab is labelled with its own union-find, then slabs boundaries are merged with a lock-free union-find
+ * and components sizes are summed per root, without building any object
+ * Labels are kept as one int per voxel until the mask is built (4 bytes per voxel, about 1 GB for 2048 x 2048 x 60),
+ * so instances should not outlive the filteredMask call
+ * @author Héloïse Monnet
+ */
+public class ConnectedComponents {
+
+    private final int width;
+    private final int height;
+    private final int nSlices;
+    private final int nSlabs;
+    private final int slab;
+    // Global provisional label of each voxel, 0 for background (4 times the size of an 8-bit binary stack)
+    private final int[][] labels;
+    // Union-find over all provisional labels, sizes are valid on roots only
+    private final AtomicIntegerArray parent;
+    private final int[] size;
+    private int nComponents = 0;
+    private int nKept = 0;
+
+
+    /**
+     * Label non-zero voxels of binary image
+     */
+    public ConnectedComponents(ImagePlus binary) {
+        ImageStack stack = binary.getStack();
+        width = stack.getWidth();
+        height = stack.getHeight();
+        nSlices = stack.getSize();
+        nSlabs = Math.max(1, Math.min(nSlices, Runtime.getRuntime().availableProcessors()));
+        slab = (nSlices + nSlabs - 1) / nSlabs;
+        labels = new int[nSlices][];
+
+        // Label each slab independently, with local labels from 1
+        int[][] localParents = new int[nSlabs][];
+        int[][] localSizes = new int[nSlabs][];
+        int[] nLocal = new int[nSlabs];
+        IntStream.range(0, nSlabs).parallel().forEach(s -> {
+            SlabLabeller labeller = new SlabLabeller();
+            for (int z = s*slab; z < Math.min(nSlices, (s+1)*slab); z++)
+                labels[z] = labeller.labelPlane(stack.getPixels(z+1), z > s*slab ? labels[z-1] : null);
+            nLocal[s] = labeller.flatten();
+            localParents[s] = labeller.parent;
+            localSizes[s] = labeller.size;
+        });
+
+        // Shift local labels to global ones
+        int[] offsets = new int[nSlabs+1];
+        for (int s = 0; s < nSlabs; s++)
+            offsets[s+1] = offsets[s] + nLocal[s];
+        parent = new AtomicIntegerArray(offsets[nSlabs] + 1);
+        int[] voxels = new int[offsets[nSlabs] + 1];
+        IntStream.range(0, nSlabs).parallel().forEach(s -> {
+            int off = offsets[s];
+            for (int l = 1; l <= nLocal[s]; l++) {
+                parent.set(off + l, off + localParents[s][l]);
+                voxels[off + l] = localSizes[s][l];
+            }
+            for (int z = s*slab; z < Math.min(nSlices, (s+1)*slab); z++) {
+                int[] plane = labels[z];
+                for (int i = 0; i < plane.length; i++)
+                    if (plane[i] != 0)
+                        plane[i] += off;
+            }
+        });
+
+        // Merge components across slabs boundaries
+        IntStream.range(1, nSlabs).parallel().forEach(s -> {
+            int z = s*slab;
+            if (z >= nSlices)
+                return;
+            int[] cur = labels[z];
+            int[] prev = labels[z-1];
+            for (int y = 0; y < height; y++)
+                for (int x = 0; x < width; x++) {
+                    int l = cur[y*width + x];
+                    if (l == 0)
+                        continue;
+                    for (int dy = -1; dy <= 1; dy++)
+                        for (int dx = -1; dx <= 1; dx++) {
+                            int xx = x+dx, yy = y+dy;
+                            if (xx >= 0 && xx < width && yy >= 0 && yy < height && prev[yy*width + xx] != 0)
+                                union(l, prev[yy*width + xx]);
+                        }
+                }
+        });
+
+        // Sum sizes on roots
+        size = new int[voxels.length];
+        for (int l = 1; l < voxels.length; l++) {
+            int root = find(l);
+            if (root == l)
+                nComponents++;
+            size[root] += voxels[l];
+        }
+    }
+
+
+    /**
+     * Number of connected components
+     */
+    public int getNbComponents() {
+        return(nComponents);
+    }
+
+
+    /**
+     * Number of components kept by the last call to filteredMask
+     */
+    public int getNbKept() {
+        return(nKept);
+    }
+
+
+    /**
+     * Mask of components with volume >= minVol, same criterion as MeasureVolume.getVolumeUnit on mcib3d objects
+     */
+    public BitMask filteredMask(double minVol, Parameters params) {
+        boolean[] keep = new boolean[size.length];
+        nKept = 0;
+        for (int l = 1; l < size.length; l++) {
+            if (parent.get(l) != l)
+                continue;
+            // Same operations order as MeasureVolume.getVolumeUnit
+            double vol = size[l] * params.pixelWidth * params.pixelWidth * params.pixelDepth;
+            keep[l] = vol >= minVol;
+            if (keep[l])
+                nKept++;
+        }
+        BitMask mask = new BitMask(width, height, nSlices);
+        // Each plane has its own bitset, so planes can be written concurrently
+        IntStream.range(0, nSlices).parallel().forEach(z -> {
+            int[] plane = labels[z];
+            for (int i = 0; i < plane.length; i++)
+                if (plane[i] != 0 && keep[find(plane[i])])
+                    mask.set(i, z);
+        });
+        return(mask);
+    }
+
+
+    private int find(int x) {
+        while (true) {
+            int p = parent.get(x);
+            if (p == x)
+                return(x);
+            int gp = parent.get(p);
+            // Path halving, harmless if another thread changed it meanwhile
+            if (gp != p)
+                parent.compareAndSet(x, p, gp);
+            x = p;
+        }
+    }
+
+
+    /**
+     * Lock-free union, the smallest root becomes the parent
+     */
+    private void union(int a, int b) {
+        while (true) {
+            a = find(a);
+            b = find(b);
+            if (a == b)
+                return;
+            if (a < b) {
+                int t = a;
+                a = b;
+                b = t;
+            }
+            if (parent.compareAndSet(a, a, b))
+                return;
+        }
+    }
+
+
+    /**
+     * Raster scan labelling of consecutive planes of a slab, with a sequential union-find
+     */
+    private class SlabLabeller {
+
+        int[] parent = new int[1024];
+        int[] size = new int[1024];
+        int n = 0;
+
+
+        int[] labelPlane(Object pixels, int[] prev) {
+            int[] cur = new int[width*height];
+            int[] neigh = new int[13];
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int i = y*width + x;
+                    if (!isSet(pixels, i))
+                        continue;
+                    // Already labelled neighbours: 4 in this plane, 9 in previous one
+                    int nn = 0;
+                    if (x > 0 && cur[i-1] != 0) neigh[nn++] = cur[i-1];
+                    if (y > 0) {
+                        for (int dx = -1; dx <= 1; dx++)
+                            if (x+dx >= 0 && x+dx < width && cur[i-width+dx] != 0)
+                                neigh[nn++] = cur[i-width+dx];
+                    }
+                    if (prev != null) {
+                        for (int dy = -1; dy <= 1; dy++)
+                            for (int dx = -1; dx <= 1; dx++)
+                                if (x+dx >= 0 && x+dx < width && y+dy >= 0 && y+dy < height && prev[i + dy*width + dx] != 0)
+                                    neigh[nn++] = prev[i + dy*width + dx];
+                    }
+                    int l;
+                    if (nn == 0) {
+                        l = newLabel();
+                    } else {
+                        l = neigh[0];
+                        for (int k = 1; k < nn; k++)
+                            l = union(l, neigh[k]);
+                        l = find(l);
+                    }
+                    cur[i] = l;
+                    size[l]++;
+                }
+            }
+            return(cur);
+        }
+
+
+        private int newLabel() {
+            n++;
+            if (n >= parent.length) {
+                parent = Arrays.copyOf(parent, parent.length*2);
+                size = Arrays.copyOf(size, size.length*2);
+            }
+            parent[n] = n;
+            return(n);
+        }
+
+
+        private int find(int x) {
+            while (parent[x] != x) {
+                parent[x] = parent[parent[x]];
+                x = parent[x];
+            }
+            return(x);
+        }
+
+
+        private int union(int a, int b) {
+            a = find(a);
+            b = find(b);
+            if (a == b)
+                return(a);
+            if (a > b) {
+                parent[a] = b;
+                return(b);
+            }
+            parent[b] = a;
+            return(a);
+        }
+
+
+        /**
+         * Point each label to its root, return number of labels
+         */
+        int flatten() {
+            for (int l = 1; l <= n; l++)
+                parent[l] = find(l);
+            return(n);
+        }
+    }
+
+
+    private static boolean isSet(Object pixels, int i) {
+        if (pixels instanceof byte[])
+            return(((byte[]) pixels)[i] != 0);
+        if (pixels instanceof short[])
+            return(((short[]) pixels)[i] != 0);
+        return(((float[]) pixels)[i] != 0);
+    }
+}
@@ -0,0 +1,69 @@
+package Iba1_Tools.Filters;
+
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.util.Arrays;
+
+
+/**
+ * Streaming background noise estimator: median of the min intensity z-projection
+ * Planes are given one by one (for instance while they are read), only a running min per pixel is kept
+ * Gives the same value as ImageJ median statistics of the ZProjector min projection
+ * Not thread-safe, planes of an image must be added by a single thread
+ * @author Héloïse Monnet
+ */
+public class BackgroundEstimator {
+    
+    private final float[] mins;
+    private int bitDepth = 0;
+    
+    
+    public BackgroundEstimator(int width, int height) {
+        mins = new float[width*height];
+        Arrays.fill(mins, Float.MAX_VALUE);
+    }
+    
+    
+    /**
+     * Update running min with a new plane
+     */
+    public void addPlane(ImageProcessor ip) {
+        bitDepth = ip.getBitDepth();
+        if (ip instanceof ShortProcessor) {
+            short[] pixels = (short[]) ip.getPixels();
+            for (int i = 0; i < mins.length; i++) {
+                int v = pixels[i] & 0xffff;
+                if (v < mins[i])
+                    mins[i] = v;
+            }
+        } else {
+            for (int i = 0; i < mins.length; i++) {
+                float v = ip.getf(i);
+                if (v < mins[i])
+                    mins[i] = v;
+            }
+        }
+    }
+    
+    
+    /**
+     * Median of the running min
+     * For 8 and 16-bit images, taken from a 16-bit histogram as ImageJ does
+     */
+    public double getMedian() {
+        if (bitDepth != 8 && bitDepth != 16)
+            return(new FloatProcessor(1, mins.length, mins.clone()).getStatistics().median);
+        
+        int[] histo = new int[65536];
+        for (float v: mins)
+            histo[(int) v]++;
+        double halfCount = mins.length / 2.0;
+        double sum = 0;
+        int i = -1;
+        do {
+            sum += histo[++i];
+        } while (sum <= halfCount && i < 65535);
+        return(i);
+    }
+}
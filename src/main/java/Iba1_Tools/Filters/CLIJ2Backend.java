@@ -0,0 +1,104 @@
+package Iba1_Tools.Filters;
+
+import ij.ImagePlus;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij2.CLIJ2;
+
+
+/**
+ * Filters run on the GPU with CLIJ2
+ * CLIJ2 instance is shared, only one thread at a time uses the device
+ * @author Héloïse Monnet
+ */
+public class CLIJ2Backend implements FilterBackend {
+    
+    private final CLIJ2 clij2 = CLIJ2.getInstance();
+    
+    
+    @Override
+    public String getName() {
+        return("CLIJ2");
+    }
+    
+    
+    /**
+     * Device name, fails if no OpenCL device is usable
+     */
+    public String getDeviceName() {
+        return(clij2.getGPUName());
+    }
+    
+    
+    /**
+     * 2D median filtering slice by slice using CLIJ2
+     */ 
+    @Override
+    public ImagePlus median3DSliceBySlice(ImagePlus img, double sizeXY) {
+       synchronized (clij2) {
+           ClearCLBuffer imgCL = clij2.push(img); 
+           ClearCLBuffer imgCLMed = clij2.create(imgCL);
+           clij2.median3DSliceBySliceSphere(imgCL, imgCLMed, sizeXY, sizeXY);
+           ImagePlus imgMed = clij2.pull(imgCLMed);
+           clij2.release(imgCL);
+           clij2.release(imgCLMed);
+           return(imgMed);
+       }
+    }
+    
+    
+    /**
+     * Automatic thresholding using CLIJ2
+     */
+    @Override
+    public ImagePlus threshold(ImagePlus img, String thMed) {
+        synchronized (clij2) {
+            ClearCLBuffer imgCL = clij2.push(img);
+            ClearCLBuffer imgCLBin = clij2.create(imgCL);
+            clij2.automaticThreshold(imgCL, imgCLBin, thMed);
+            ImagePlus imgBin = clij2.pull(imgCLBin);
+            clij2.release(imgCL);
+            clij2.release(imgCLBin);
+            return(imgBin);
+        }
+    }
+    
+    
+    /**
+     * Fused chain on the device: raw image is pushed once,
+     * only the binary image and the 2D min projection (if background is asked) are pulled back
+     */
+    @Override
+    public FilteredStack segment(ImagePlus img, double sizeXY, String thMethod, boolean computeBg) {
+        synchronized (clij2) {
+            ClearCLBuffer imgCL = clij2.push(img);
+            
+            // Background: min projection of the raw image
+            ClearCLBuffer imgCLProj = null;
+            if (computeBg) {
+                imgCLProj = clij2.create(new long[]{imgCL.getWidth(), imgCL.getHeight()}, imgCL.getNativeType());
+                clij2.minimumZProjection(imgCL, imgCLProj);
+            }
+            
+            // Median + threshold
+            ClearCLBuffer imgCLMed = clij2.create(imgCL);
+            clij2.median3DSliceBySliceSphere(imgCL, imgCLMed, sizeXY, sizeXY);
+            clij2.release(imgCL);
+            ClearCLBuffer imgCLBin = clij2.create(imgCLMed);
+            clij2.automaticThreshold(imgCLMed, imgCLBin, thMethod);
+            clij2.release(imgCLMed);
+            
+            ImagePlus imgBin = clij2.pull(imgCLBin);
+            clij2.release(imgCLBin);
+            
+            // Median of the projection computed as before, on the 2D image only
+            double bg = Double.NaN;
+            if (computeBg) {
+                ImagePlus imgProj = clij2.pull(imgCLProj);
+                clij2.release(imgCLProj);
+                bg = imgProj.getProcessor().getStatistics().median;
+                imgProj.flush();
+            }
+            return(new FilteredStack(imgBin, bg));
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package Iba1_Tools.Filters;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.AutoThresholder;
+import ij.process.ImageProcessor;
+import java.util.stream.IntStream;
+
+
+/**
+ * Filters run on the CPU, slices processed in parallel in the common fork-join pool
+ * Results are identical to the CLIJ2 ones (checked by FilterBackendsParityTest):
+ * - median uses the same circular kernel with clamp-to-edge borders
+ * - threshold is computed as in CLIJ2 automaticThreshold, from a single 256-bins stack histogram between stack min and max:
+ *   value v goes to bin (int) ((v - min) * 255 / (max - min) + 0.5), bin b given by AutoThresholder
+ *   becomes threshold min + (b + 1) / 256 * (max - min), and pixels >= threshold are foreground
+ * @author Héloïse Monnet
+ */
+public class CPUBackend implements FilterBackend {
+
+    private static final int NBINS = 256;
+
+
+    @Override
+    public String getName() {
+        return("CPU");
+    }
+
+
+    /**
+     * 2D median filtering slice by slice
+     * With a radius of 2, the kernel has 13 pixels only: selecting the median among them
+     * is cheaper than maintaining a 65536-bins sliding histogram for 16-bit images
+     */
+    @Override
+    public ImagePlus median3DSliceBySlice(ImagePlus img, double sizeXY) {
+        // Kernel offsets, same ellipse test as CLIJ2
+        int r = (int) sizeXY;
+        int n = 0;
+        int[] dxs = new int[(2*r+1)*(2*r+1)];
+        int[] dys = new int[dxs.length];
+        for (int dx = -r; dx <= r; dx++)
+            for (int dy = -r; dy <= r; dy++)
+                if (r == 0 || (float)(dx*dx)/(r*r) + (float)(dy*dy)/(r*r) <= 1.0f) {
+                    dxs[n] = dx;
+                    dys[n] = dy;
+                    n++;
+                }
+        int kernelSize = n;
+
+        ImageStack stack = img.getStack();
+        ImageProcessor[] ipsOut = new ImageProcessor[stack.getSize()];
+        IntStream.range(0, stack.getSize()).parallel().forEach(s -> {
+            ImageProcessor ip = stack.getProcessor(s+1);
+            ImageProcessor ipOut = ip.createProcessor(ip.getWidth(), ip.getHeight());
+            medianSlice(ip, ipOut, dxs, dys, kernelSize);
+            ipsOut[s] = ipOut;
+        });
+        return(createImage(img, ipsOut, "median"));
+    }
+
+
+    private static void medianSlice(ImageProcessor ip, ImageProcessor ipOut, int[] dxs, int[] dys, int kernelSize) {
+        int width = ip.getWidth();
+        int height = ip.getHeight();
+        float[] window = new float[kernelSize];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                // Insertion sort of the kernel values
+                for (int k = 0; k < kernelSize; k++) {
+                    int xx = Math.min(Math.max(x + dxs[k], 0), width - 1);
+                    int yy = Math.min(Math.max(y + dys[k], 0), height - 1);
+                    float v = ip.getf(xx, yy);
+                    int i = k;
+                    while (i > 0 && window[i-1] > v) {
+                        window[i] = window[i-1];
+                        i--;
+                    }
+                    window[i] = v;
+                }
+                ipOut.setf(x, y, window[kernelSize/2]);
+            }
+        }
+    }
+
+
+    /**
+     * Automatic thresholding from the stack histogram, pixels above threshold set to 1
+     */
+    @Override
+    public ImagePlus threshold(ImagePlus img, String thMethod) {
+        ImageStack stack = img.getStack();
+        float[] minMax = stackMinMax(stack);
+        int[] histo = stackHistogram(stack, minMax[0], minMax[1]);
+        return(binarize(img, getThreshold(histo, thMethod, minMax[0], minMax[1])));
+    }
+
+
+    /**
+     * Stack min and max {min, max}, slices are scanned in parallel
+     */
+    public static float[] stackMinMax(ImageStack stack) {
+        int nSlices = stack.getSize();
+        float[] mins = new float[nSlices];
+        float[] maxs = new float[nSlices];
+        IntStream.range(0, nSlices).parallel().forEach(s -> {
+            ImageProcessor ip = stack.getProcessor(s+1);
+            float sMin = Float.MAX_VALUE, sMax = -Float.MAX_VALUE;
+            for (int i = 0; i < ip.getPixelCount(); i++) {
+                float v = ip.getf(i);
+                if (v < sMin) sMin = v;
+                if (v > sMax) sMax = v;
+            }
+            mins[s] = sMin;
+            maxs[s] = sMax;
+        });
+        float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+        for (int s = 0; s < nSlices; s++) {
+            min = Math.min(min, mins[s]);
+            max = Math.max(max, maxs[s]);
+        }
+        return(new float[] {min, max});
+    }
+
+
+    /**
+     * Pixels at or above threshold set to 1, others to 0
+     */
+    public static ImagePlus binarize(ImagePlus img, float th) {
+        ImageStack stack = img.getStack();
+        int nSlices = stack.getSize();
+        ImageProcessor[] ipsOut = new ImageProcessor[nSlices];
+        IntStream.range(0, nSlices).parallel().forEach(s -> {
+            ImageProcessor ip = stack.getProcessor(s+1);
+            ImageProcessor ipOut = ip.createProcessor(ip.getWidth(), ip.getHeight());
+            for (int i = 0; i < ip.getPixelCount(); i++)
+                if (ip.getf(i) >= th)
+                    ipOut.setf(i, 1);
+            ipsOut[s] = ipOut;
+        });
+        return(createImage(img, ipsOut, "binary"));
+    }
+
+
+    /**
+     * Histogram of the whole stack with 256 bins centered on min + b * (max - min) / 255, as CLIJ2 histogram
+     * Slices are counted in parallel then merged
+     */
+    public static int[] stackHistogram(ImageStack stack, float min, float max) {
+        float range = max - min;
+        int[][] histos = new int[stack.getSize()][];
+        IntStream.range(0, stack.getSize()).parallel().forEach(s -> {
+            ImageProcessor ip = stack.getProcessor(s+1);
+            int[] h = new int[NBINS];
+            for (int i = 0; i < ip.getPixelCount(); i++) {
+                // Float arithmetic as on the device
+                int bin = (range > 0) ? (int) ((ip.getf(i) - min) * (float) (NBINS - 1) / range + 0.5) : 0;
+                h[bin]++;
+            }
+            histos[s] = h;
+        });
+        int[] histo = new int[NBINS];
+        for (int[] h: histos)
+            for (int b = 0; b < NBINS; b++)
+                histo[b] += h[b];
+        return(histo);
+    }
+
+
+    /**
+     * Threshold value given by AutoThresholder method on a stack histogram
+     */
+    public static float getThreshold(int[] histo, String thMethod, float min, float max) {
+        AutoThresholder.Method method = AutoThresholder.Method.valueOf(thMethod);
+        int bin = new AutoThresholder().getThreshold(method, histo);
+        return(min + ((bin + 1.0f) / NBINS) * (max - min));
+    }
+
+
+    private static ImagePlus createImage(ImagePlus img, ImageProcessor[] ips, String suffix) {
+        ImageStack stackOut = new ImageStack(img.getWidth(), img.getHeight());
+        for (ImageProcessor ip: ips)
+            stackOut.addSlice(ip);
+        ImagePlus imgOut = new ImagePlus(img.getShortTitle() + "-" + suffix, stackOut);
+        imgOut.setCalibration(img.getCalibration());
+        return(imgOut);
+    }
+}
@@ -0,0 +1,47 @@
+package Iba1_Tools.Filters;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+
+/**
+ * Image filters used by cells segmentation, run either on the GPU with CLIJ2 or on the CPU
+ * @author Héloïse Monnet
+ */
+public interface FilterBackend {
+    
+    /**
+     * Backend name, as shown in dialog box
+     */
+    String getName();
+    
+    /**
+     * 2D median filtering slice by slice with a circular kernel
+     */
+    ImagePlus median3DSliceBySlice(ImagePlus img, double sizeXY);
+    
+    /**
+     * Automatic global thresholding, returns a binary image with values 0 and 1
+     */
+    ImagePlus threshold(ImagePlus img, String thMethod);
+    
+    /**
+     * Median filtering + thresholding of the image,
+     * and if asked background noise (median of the min intensity z-projection) of the raw image, NaN otherwise
+     */
+    default FilteredStack segment(ImagePlus img, double sizeXY, String thMethod, boolean computeBg) {
+        ImagePlus imgMed = median3DSliceBySlice(img, sizeXY);
+        ImagePlus imgBin = threshold(imgMed, thMethod);
+        imgMed.flush();
+        
+        double bg = Double.NaN;
+        if (computeBg) {
+            BackgroundEstimator bgEstimator = new BackgroundEstimator(img.getWidth(), img.getHeight());
+            ImageStack stack = img.getStack();
+            for (int s = 1; s <= stack.getSize(); s++)
+                bgEstimator.addPlane(stack.getProcessor(s));
+            bg = bgEstimator.getMedian();
+        }
+        return(new FilteredStack(imgBin, bg));
+    }
+}
@@ -0,0 +1,38 @@
+package Iba1_Tools.Filters;
+
+
+/**
+ * Select filters backend
+ * @author Héloïse Monnet
+ */
+public class FilterBackends {
+    
+    public static final String AUTO = "Auto";
+    public static final String CLIJ2 = "CLIJ2";
+    public static final String CPU = "CPU";
+    
+    public static final String[] CHOICES = {AUTO, CLIJ2, CPU};
+    
+    
+    /**
+     * Return backend with given name
+     * Auto uses CLIJ2 if an OpenCL device is usable, CPU otherwise
+     */
+    public static FilterBackend get(String name) {
+        if (CPU.equals(name)) {
+            System.out.println("Filters backend: CPU");
+            return(new CPUBackend());
+        }
+        try {
+            CLIJ2Backend clij2 = new CLIJ2Backend();
+            System.out.println("Filters backend: CLIJ2 on " + clij2.getDeviceName());
+            return(clij2);
+        } catch (Throwable e) {
+            // CLIJ2 not installed or no OpenCL device
+            if (CLIJ2.equals(name))
+                throw new IllegalStateException("CLIJ2 backend requested but not usable: " + e, e);
+            System.out.println("CLIJ2 not usable (" + e + "), filters backend: CPU");
+            return(new CPUBackend());
+        }
+    }
+}
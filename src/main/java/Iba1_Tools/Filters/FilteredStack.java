@@ -0,0 +1,19 @@
+package Iba1_Tools.Filters;
+
+import ij.ImagePlus;
+
+
+/**
+ * Output of the fused segmentation filters: binary image + background noise of the raw image (NaN if not computed)
+ * @author Héloïse Monnet
+ */
+public class FilteredStack {
+    
+    public final ImagePlus binary;
+    public final double bg;
+    
+    public FilteredStack(ImagePlus binary, double bg) {
+        this.binary = binary;
+        this.bg = bg;
+    }
+}
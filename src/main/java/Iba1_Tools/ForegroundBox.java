@@ -0,0 +1,108 @@
+package Iba1_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+
+/**
+ * Padded bounding box of the cells mask, the only region where somas can pass the colocalization filter
+ * Used to send Cellpose a sub-volume of the image and to put its labels back in full image coordinates
+ * @author Héloïse Monnet
+ */
+public class ForegroundBox {
+
+    public final int x;
+    public final int y;
+    public final int z;
+    public final int width;
+    public final int height;
+    public final int depth;
+    // Full image size
+    private final int fullWidth;
+    private final int fullHeight;
+    private final int fullDepth;
+
+
+    private ForegroundBox(int x, int y, int z, int width, int height, int depth, int fullWidth, int fullHeight, int fullDepth) {
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        this.fullWidth = fullWidth;
+        this.fullHeight = fullHeight;
+        this.fullDepth = fullDepth;
+    }
+
+
+    /**
+     * Bounding box of mask padded by one soma diameter in xy and one soma radius in z,
+     * so that somas at the border of cells are not cut, null if mask is empty
+     */
+    public static ForegroundBox of(BitMask mask, Parameters params) {
+        int[] box = mask.boundingBox();
+        if (box == null)
+            return(null);
+        int padXY = params.cellposeDiam;
+        int padZ = (int) Math.ceil(params.cellposeDiam * params.pixelWidth / 2 / params.pixelDepth);
+        int x0 = Math.max(0, box[0] - padXY);
+        int y0 = Math.max(0, box[1] - padXY);
+        int z0 = Math.max(0, box[2] - padZ);
+        int x1 = Math.min(mask.width - 1, box[3] + padXY);
+        int y1 = Math.min(mask.height - 1, box[4] + padXY);
+        int z1 = Math.min(mask.nSlices - 1, box[5] + padZ);
+        return(new ForegroundBox(x0, y0, z0, x1-x0+1, y1-y0+1, z1-z0+1, mask.width, mask.height, mask.nSlices));
+    }
+
+
+    /**
+     * Whether box covers the whole image
+     */
+    public boolean isFull() {
+        return(width == fullWidth && height == fullHeight && depth == fullDepth);
+    }
+
+
+    /**
+     * Box as {x, y, z, width, height, depth}
+     */
+    public int[] region() {
+        return(new int[] {x, y, z, width, height, depth});
+    }
+
+
+    /**
+     * Fraction of the image voxels inside box
+     */
+    public double fraction() {
+        return((double) width * height * depth / ((double) fullWidth * fullHeight * fullDepth));
+    }
+
+
+    /**
+     * Copy of the box region of image
+     */
+    public ImagePlus crop(ImagePlus img) {
+        ImagePlus imgCrop = new ImagePlus(img.getTitle(), img.getStack().crop(x, y, z, width, height, depth));
+        imgCrop.setCalibration(img.getCalibration());
+        return(imgCrop);
+    }
+
+
+    /**
+     * Labels of the box region put back in a full size labels image, background outside box
+     */
+    public ImagePlus uncrop(ImagePlus labels) {
+        ImageStack stack = labels.getStack();
+        ImageStack full = ImageStack.create(fullWidth, fullHeight, fullDepth, labels.getBitDepth());
+        for (int s = 1; s <= Math.min(stack.getSize(), depth); s++) {
+            ImageProcessor ip = full.getProcessor(z + s);
+            ip.insert(stack.getProcessor(s), x, y);
+        }
+        ImagePlus imgFull = new ImagePlus(labels.getTitle(), full);
+        imgFull.setCalibration(labels.getCalibration());
+        return(imgFull);
+    }
+}
@@ -0,0 +1,277 @@
+package Iba1_Tools;
+
+import Iba1_Tools.Filters.FilterBackends;
+import ij.process.AutoThresholder;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+
+/**
+ * Options of a headless run, from command-line arguments and/or a parameters file
+ * Keys are the dialog parameters names, given as --key value, --key=value, or key=value lines in the file
+ * Command-line values override the file ones
+ * @author Héloïse Monnet
+ */
+public class HeadlessOptions {
+
+    public static final String USAGE = "Usage: Iba1_Headless --images <dir> [--params <file>] [--shard i/n] [--output <dir>] [--key value ...]\n"
+            + "       Iba1_Headless --merge <dir1,dir2,...|images dir> [--output <dir>]\n"
+            + "Shards are numbered from 0 to n-1, image k of the sorted images list goes to shard k % n\n"
+            + "Values with spaces are given between double quotes, e.g. --images \"/data/my images\"\n"
+            + "Keys: channel (name or index), pixelWidth, pixelDepth, calibFromImages, cellposeEnvDir, cellposeModelPath, cellposeModel,\n"
+            + "      cellposeDiam, cellposeStitchTh, cellposeWorker, cellposeRawExchange, cellposeGpu, cellposeProcesses, cellposeThreads,\n"
+            + "      cellposeTimeoutMin, maskCacheDir, maskCacheGB, minSomaVol, maxSomaVol,\n"
+            + "      cellThMethod, thresholdSweep, minCellVol, filterBackend, overlayMode, resume, readerCacheDir, planeCacheMB, queueSize, readThreads, segThreads,\n"
+            + "      somaThreads, cellposeBatchSize, cellposeCrop, measureThreads, writeThreads";
+
+    public String imageDir;
+    public String output;
+    public String merge;
+    public int shard = 0;
+    public int nShards = 1;
+    // Analysis parameters, applied to the tools once image metadata is known
+    private final Map<String, String> values = new LinkedHashMap<>();
+
+
+    /**
+     * Split an arguments string on whitespace, text between single or double quotes is kept in one argument
+     */
+    public static String[] split(String args) {
+        ArrayList<String> list = new ArrayList<>();
+        StringBuilder arg = new StringBuilder();
+        boolean inArg = false;
+        char quote = 0;
+        for (char c: args.toCharArray()) {
+            if (quote != 0) {
+                if (c == quote)
+                    quote = 0;
+                else
+                    arg.append(c);
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+                inArg = true;
+            } else if (Character.isWhitespace(c)) {
+                if (inArg)
+                    list.add(arg.toString());
+                arg.setLength(0);
+                inArg = false;
+            } else {
+                arg.append(c);
+                inArg = true;
+            }
+        }
+        if (quote != 0)
+            throw new IllegalArgumentException("Unclosed quote in arguments: " + args);
+        if (inArg)
+            list.add(arg.toString());
+        return(list.toArray(new String[0]));
+    }
+
+
+    /**
+     * Parse command-line arguments
+     */
+    public static HeadlessOptions parse(String[] args) throws IOException {
+        HeadlessOptions options = new HeadlessOptions();
+        Map<String, String> cli = new LinkedHashMap<>();
+        for (int a = 0; a < args.length; a++) {
+            String arg = args[a];
+            if (!arg.startsWith("--"))
+                throw new IllegalArgumentException("Unexpected argument " + arg + "\n" + USAGE);
+            String key = arg.substring(2);
+            String value;
+            int eq = key.indexOf('=');
+            if (eq >= 0) {
+                value = key.substring(eq+1);
+                key = key.substring(0, eq);
+            } else if (a+1 < args.length) {
+                value = args[++a];
+            } else {
+                throw new IllegalArgumentException("Missing value for " + arg + "\n" + USAGE);
+            }
+            cli.put(key, value);
+        }
+
+        // Parameters file first, so that command-line values win
+        if (cli.containsKey("params")) {
+            Properties props = new Properties();
+            try (Reader in = new InputStreamReader(new FileInputStream(cli.get("params")), StandardCharsets.UTF_8)) {
+                props.load(in);
+            }
+            for (String key: props.stringPropertyNames())
+                options.put(key, props.getProperty(key).trim());
+        }
+        for (Map.Entry<String, String> e: cli.entrySet())
+            if (!e.getKey().equals("params"))
+                options.put(e.getKey(), e.getValue());
+
+        if (options.imageDir == null && options.merge == null)
+            throw new IllegalArgumentException("No images directory given\n" + USAGE);
+        return(options);
+    }
+
+
+    private void put(String key, String value) {
+        switch (key) {
+            case "images":
+                imageDir = value.endsWith(File.separator) ? value : value + File.separator;
+                break;
+            case "output":
+                output = value;
+                break;
+            case "merge":
+                merge = value;
+                break;
+            case "shard":
+                String[] parts = value.split("/");
+                if (parts.length != 2)
+                    throw new IllegalArgumentException("Shard must be given as i/n, not " + value);
+                shard = Integer.parseInt(parts[0].trim());
+                nShards = Integer.parseInt(parts[1].trim());
+                if (nShards < 1 || shard < 0 || shard >= nShards)
+                    throw new IllegalArgumentException("Shard index must be in [0, " + nShards + "[, not " + shard);
+                break;
+            default:
+                values.put(key, value);
+        }
+    }
+
+
+    /**
+     * Images of this shard, taken from the sorted images list
+     */
+    public List<String> shardImages(List<String> imageFiles) {
+        ArrayList<String> images = new ArrayList<>();
+        for (int i = shard; i < imageFiles.size(); i += nShards)
+            images.add(imageFiles.get(i));
+        return(images);
+    }
+
+
+    /**
+     * Results folder of this run: given output, or one folder per shard in images directory
+     */
+    public String resultsDir(Parameters params) {
+        if (output != null)
+            return(output);
+        String suffix = (nShards > 1) ? "shard" + shard + "of" + nShards : "headless";
+        return(imageDir + "Results_" + params.cellThMethod + "_" + suffix);
+    }
+
+
+    /**
+     * Folders to merge: given list, or all shards folders of an images directory
+     */
+    public List<File> mergeDirs() {
+        ArrayList<File> dirs = new ArrayList<>();
+        File mergeDir = new File(merge);
+        if (mergeDir.isDirectory() && !new File(mergeDir, "results.csv").exists()) {
+            File[] shards = mergeDir.listFiles(f -> f.isDirectory() && f.getName().startsWith("Results_") && f.getName().matches(".*_shard\\d+of\\d+"));
+            if (shards != null) {
+                Arrays.sort(shards);
+                dirs.addAll(Arrays.asList(shards));
+            }
+        } else {
+            for (String dir: merge.split(","))
+                dirs.add(new File(dir.trim()));
+        }
+        return(dirs);
+    }
+
+
+    /**
+     * Merged results folder
+     */
+    public File mergeOutput(List<File> dirs) {
+        if (output != null)
+            return(new File(output));
+        String name = dirs.get(0).getName().replaceAll("_shard\\d+of\\d+$", "") + "_merged";
+        return(new File(dirs.get(0).getParentFile(), name));
+    }
+
+
+    /**
+     * Set tools parameters needed before the first image is opened
+     */
+    public void applyReading(Tools tools) {
+        if (values.containsKey("readerCacheDir"))
+            tools.readerCacheDir = values.get("readerCacheDir");
+    }
+
+
+    /**
+     * Set tools parameters as the dialog box does, then return run parameters
+     * Image calibration must already be read in tools, given values override it
+     */
+    public Parameters apply(Tools tools, String[] channels) {
+        String channel = channels[Math.min(2, channels.length-1)];
+        for (Map.Entry<String, String> e: values.entrySet()) {
+            String v = e.getValue();
+            switch (e.getKey()) {
+                case "channel":
+                    if (Arrays.asList(channels).contains(v))
+                        channel = v;
+                    else if (v.matches("\\d+") && Integer.parseInt(v) < channels.length)
+                        channel = channels[Integer.parseInt(v)];
+                    else
+                        throw new IllegalArgumentException("Unknown channel " + v + ", channels are " + Arrays.toString(channels));
+                    break;
+                case "pixelWidth": tools.cal.pixelWidth = tools.cal.pixelHeight = Double.parseDouble(v); break;
+                case "pixelDepth": tools.cal.pixelDepth = Double.parseDouble(v); break;
+                case "calibFromImages": tools.calibFromImages = Boolean.parseBoolean(v); break;
+                case "cellposeEnvDir": tools.cellposeEnvDir = v; break;
+                case "cellposeModelPath": tools.cellposeModelPath = v; break;
+                case "cellposeModel": tools.cellposeModel = v; break;
+                case "cellposeDiam": tools.cellposeDiam = Integer.parseInt(v); break;
+                case "cellposeStitchTh": tools.cellposeStitchTh = Double.parseDouble(v); break;
+                case "cellposeWorker": tools.cellposeWorker = Boolean.parseBoolean(v); break;
+                case "cellposeRawExchange": tools.cellposeRawExchange = Boolean.parseBoolean(v); break;
+                case "cellposeGpu": tools.cellposeGpu = Boolean.parseBoolean(v); break;
+                case "cellposeProcesses": tools.cellposeProcesses = Integer.parseInt(v); break;
+                case "cellposeThreads": tools.cellposeThreads = Integer.parseInt(v); break;
+                case "cellposeTimeoutMin": tools.cellposeTimeoutMin = Double.parseDouble(v); break;
+                case "maskCacheDir": tools.maskCacheDir = v; break;
+                case "maskCacheGB": tools.maskCacheGB = Double.parseDouble(v); break;
+                case "minSomaVol": tools.minSomaVol = Double.parseDouble(v); break;
+                case "maxSomaVol": tools.maxSomaVol = Double.parseDouble(v); break;
+                case "cellThMethod": tools.cellThMethod = choice(v, AutoThresholder.getMethods(), e.getKey()); break;
+                case "thresholdSweep": tools.thresholdSweep = v; break;
+                case "minCellVol": tools.minCellVol = Double.parseDouble(v); break;
+                case "filterBackend": tools.filterBackend = choice(v, FilterBackends.CHOICES, e.getKey()); break;
+                case "overlayMode": tools.overlayMode = choice(v, OverlayWriter.MODES, e.getKey()); break;
+                case "resume": tools.resume = Boolean.parseBoolean(v); break;
+                case "readerCacheDir": tools.readerCacheDir = v; break;
+                case "planeCacheMB": tools.planeCacheMB = Integer.parseInt(v); break;
+                case "queueSize": tools.queueSize = Integer.parseInt(v); break;
+                case "readThreads": tools.readThreads = Integer.parseInt(v); break;
+                case "segThreads": tools.segThreads = Integer.parseInt(v); break;
+                case "somaThreads": tools.somaThreads = Integer.parseInt(v); break;
+                case "cellposeBatchSize": tools.cellposeBatchSize = Integer.parseInt(v); break;
+                case "cellposeCrop": tools.cellposeCrop = Boolean.parseBoolean(v); break;
+                case "measureThreads": tools.measureThreads = Integer.parseInt(v); break;
+                case "writeThreads": tools.writeThreads = Integer.parseInt(v); break;
+                default:
+                    throw new IllegalArgumentException("Unknown parameter " + e.getKey() + "\n" + USAGE);
+            }
+        }
+        tools.pixVol = tools.cal.pixelWidth*tools.cal.pixelHeight*tools.cal.pixelDepth;
+        return(new Parameters(tools, channel, Arrays.asList(channels).indexOf(channel)));
+    }
+
+
+    private static String choice(String value, String[] choices, String key) {
+        if (!Arrays.asList(choices).contains(value))
+            throw new IllegalArgumentException(key + " must be one of " + Arrays.toString(choices) + ", not " + value);
+        return(value);
+    }
+}
@@ -0,0 +1,51 @@
+package Iba1_Tools;
+
+import ij.ImagePlus;
+import java.util.LinkedHashMap;
+import mcib3d.geom2.Objects3DIntPopulation;
+import org.apache.commons.io.FilenameUtils;
+
+
+/**
+ * State of one image travelling through the pipeline stages
+ * Each job is handled by a single stage at a time, so no synchronization is needed on its fields
+ * @author Héloïse Monnet
+ */
+public class ImageJob {
+
+    public final int index;
+    public final String file;
+    // Series of the file, analyzed as an image of its own
+    public final int series;
+    public final String rootName;
+
+    // Run parameters with this image calibration
+    public Parameters params;
+    // Exclusion ROIs rasterized once
+    public RoiMask roiMask;
+    public ImagePlus imgIba1;
+    // Cells mask and somas of each threshold method, in Parameters.thMethods order
+    public LinkedHashMap<String, BitMask> cellMasks;
+    public LinkedHashMap<String, Objects3DIntPopulation> somaPops;
+    // Background noise, NaN until computed
+    public double bg = Double.NaN;
+    public String results;
+    // First failure of this image and stage where it happened, null if none
+    public Exception error;
+    public String errorStage;
+    // Stages timings of the run, null if not recorded
+    public Timings timings;
+
+
+    public ImageJob(int index, String file) {
+        this(index, file, 0, FilenameUtils.getBaseName(file));
+    }
+
+
+    public ImageJob(int index, String file, int series, String rootName) {
+        this.index = index;
+        this.file = file;
+        this.series = series;
+        this.rootName = rootName;
+    }
+}
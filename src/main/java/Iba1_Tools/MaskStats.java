@@ -0,0 +1,161 @@
+package Iba1_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import java.util.stream.IntStream;
+
+
+/**
+ * Voxels count, sum, sum of squares, min and max of image intensities under a mask,
+ * computed in a single pass over the raw planes, in parallel over slices
+ * 8 and 16-bit intensities are accumulated in longs, so sums are exact and do not depend on planes order
+ * @author Héloïse Monnet
+ */
+public class MaskStats {
+
+    public long count;
+    public double sum;
+    public double sumSq;
+    public double min = Double.POSITIVE_INFINITY;
+    public double max = Double.NEGATIVE_INFINITY;
+
+
+    /**
+     * Measure image under mask
+     */
+    public static MaskStats measure(BitMask mask, ImagePlus img) {
+        ImageStack stack = img.getStack();
+        int nSlices = Math.min(mask.nSlices, stack.getSize());
+        MaskStats[] planes = new MaskStats[nSlices];
+        IntStream.range(0, nSlices).parallel().forEach(z -> {
+            Object pixels = stack.getPixels(z+1);
+            long[] words = mask.words(z);
+            if (pixels instanceof short[])
+                planes[z] = measureShort((short[]) pixels, words);
+            else if (pixels instanceof byte[])
+                planes[z] = measureByte((byte[]) pixels, words);
+            else
+                planes[z] = measureFloat((float[]) pixels, words);
+        });
+
+        // Merge planes in z order
+        MaskStats stats = new MaskStats();
+        for (MaskStats plane: planes) {
+            stats.count += plane.count;
+            stats.sum += plane.sum;
+            stats.sumSq += plane.sumSq;
+            stats.min = Math.min(stats.min, plane.min);
+            stats.max = Math.max(stats.max, plane.max);
+        }
+        return(stats);
+    }
+
+
+    public double mean() {
+        return(sum / count);
+    }
+
+
+    /**
+     * Volume in µm3, same operations order as MeasureVolume.getVolumeUnit
+     */
+    public double volume(Parameters params) {
+        return(count * params.pixelWidth * params.pixelWidth * params.pixelDepth);
+    }
+
+
+    public double std() {
+        if (count < 2)
+            return(0);
+        return(Math.sqrt(Math.max(0, (sumSq - sum*sum/count) / (count - 1))));
+    }
+
+
+    /**
+     * Full 64 voxels words are summed with a plain counted loop the JIT can vectorize,
+     * other words visit set bits only
+     */
+    private static MaskStats measureShort(short[] pixels, long[] words) {
+        long count = 0, sum = 0, sumSq = 0;
+        int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+        for (int w = 0; w < words.length; w++) {
+            long word = words[w];
+            if (word == 0)
+                continue;
+            int base = w << 6;
+            if (word == -1L && base + 64 <= pixels.length) {
+                for (int i = base; i < base + 64; i++) {
+                    int v = pixels[i] & 0xffff;
+                    sum += v;
+                    sumSq += (long) v * v;
+                    min = Math.min(min, v);
+                    max = Math.max(max, v);
+                }
+                count += 64;
+                continue;
+            }
+            while (word != 0) {
+                int v = pixels[base + Long.numberOfTrailingZeros(word)] & 0xffff;
+                sum += v;
+                sumSq += (long) v * v;
+                min = Math.min(min, v);
+                max = Math.max(max, v);
+                count++;
+                word &= word - 1;
+            }
+        }
+        return(plane(count, sum, sumSq, min, max));
+    }
+
+
+    private static MaskStats measureByte(byte[] pixels, long[] words) {
+        long count = 0, sum = 0, sumSq = 0;
+        int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+        for (int w = 0; w < words.length; w++) {
+            long word = words[w];
+            int base = w << 6;
+            while (word != 0) {
+                int v = pixels[base + Long.numberOfTrailingZeros(word)] & 0xff;
+                sum += v;
+                sumSq += v * v;
+                min = Math.min(min, v);
+                max = Math.max(max, v);
+                count++;
+                word &= word - 1;
+            }
+        }
+        return(plane(count, sum, sumSq, min, max));
+    }
+
+
+    private static MaskStats measureFloat(float[] pixels, long[] words) {
+        MaskStats stats = new MaskStats();
+        for (int w = 0; w < words.length; w++) {
+            long word = words[w];
+            int base = w << 6;
+            while (word != 0) {
+                double v = pixels[base + Long.numberOfTrailingZeros(word)];
+                stats.sum += v;
+                stats.sumSq += v * v;
+                stats.min = Math.min(stats.min, v);
+                stats.max = Math.max(stats.max, v);
+                stats.count++;
+                word &= word - 1;
+            }
+        }
+        return(stats);
+    }
+
+
+    private static MaskStats plane(long count, long sum, long sumSq, int min, int max) {
+        MaskStats stats = new MaskStats();
+        stats.count = count;
+        stats.sum = sum;
+        stats.sumSq = sumSq;
+        if (count > 0) {
+            stats.min = min;
+            stats.max = max;
+        }
+        return(stats);
+    }
+}
@@ -0,0 +1,175 @@
+package Iba1_Tools;
+
+import ij.ImageStack;
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import java.awt.Font;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import loci.common.DataTools;
+import loci.common.services.DependencyException;
+import loci.common.services.ServiceException;
+import loci.common.services.ServiceFactory;
+import loci.formats.FormatException;
+import loci.formats.MetadataTools;
+import loci.formats.meta.IMetadata;
+import loci.formats.out.TiffWriter;
+import loci.formats.services.OMEXMLService;
+import mcib3d.geom2.BoundingBox;
+import mcib3d.geom2.Object3DInt;
+import mcib3d.geom2.Object3DPlane;
+import mcib3d.geom2.Objects3DIntPopulation;
+import mcib3d.geom2.VoxelInt;
+import ome.units.UNITS;
+import ome.units.quantity.Length;
+import ome.xml.model.primitives.Color;
+
+
+/**
+ * Write results overlay as a compressed multi-channel TIFF, built and written slice by slice
+ * so that no full-size mask or merged hyperstack is allocated
+ * Channels: somas (red), cells (blue), Iba1 raw image (gray), somas labels (yellow)
+ * Masks only mode writes somas and cells channels as 8-bit
+ * @author Héloïse Monnet
+ */
+public class OverlayWriter {
+
+    public static final String FULL = "Full overlay";
+    public static final String MASKS = "Masks only";
+    public static final String NONE = "None";
+    public static final String[] MODES = {FULL, MASKS, NONE};
+
+    private static final Font FONT = new Font("SansSerif", Font.PLAIN, 12);
+
+    private final String mode;
+
+
+    public OverlayWriter(String mode) {
+        this.mode = mode;
+    }
+
+
+    /**
+     * Write overlay of somas and cells on image
+     */
+    public void write(Objects3DIntPopulation somaPop, BitMask cellMask, ImagePlus img, String name, Parameters params)
+            throws DependencyException, ServiceException, FormatException, IOException {
+        if (NONE.equals(mode))
+            return;
+        boolean full = FULL.equals(mode);
+        int width = img.getWidth();
+        int height = img.getHeight();
+        int nSlices = img.getNSlices();
+        int bitDepth = full ? img.getBitDepth() : 8;
+        int nChannels = full ? 4 : 2;
+
+        // Objects planes and labels sorted by slice
+        // Somas are numbered from 1 in population order, their Cellpose labels are left unchanged
+        // (objects are shared by the populations of all threshold methods)
+        HashMap<Integer, List<Object3DPlane>> somaPlanes = new HashMap<>();
+        HashMap<Integer, List<int[]>> somaLabels = new HashMap<>();
+        int number = 0;
+        for (Object3DInt soma: somaPop.getObjects3DInt()) {
+            for (Object3DPlane plane: soma.getObject3DPlanes())
+                somaPlanes.computeIfAbsent(plane.getZ(), z -> new ArrayList<>()).add(plane);
+            BoundingBox bbox = soma.getBoundingBox();
+            somaLabels.computeIfAbsent(bbox.zmin, z -> new ArrayList<>()).add(new int[] {++number, bbox.xmin, bbox.ymin});
+        }
+
+        IMetadata meta = new ServiceFactory().getInstance(OMEXMLService.class).createOMEXMLMetadata();
+        String pixelType = (bitDepth == 8) ? "uint8" : (bitDepth == 16 ? "uint16" : "float");
+        MetadataTools.populateMetadata(meta, 0, new File(name).getName(), true, "XYCZT", pixelType, width, height, nSlices, nChannels, 1, 1);
+        meta.setPixelsPhysicalSizeX(new Length(params.pixelWidth, UNITS.MICROMETER), 0);
+        meta.setPixelsPhysicalSizeY(new Length(params.pixelWidth, UNITS.MICROMETER), 0);
+        meta.setPixelsPhysicalSizeZ(new Length(params.pixelDepth, UNITS.MICROMETER), 0);
+        meta.setChannelColor(new Color(255, 0, 0, 255), 0, 0);
+        meta.setChannelColor(new Color(0, 0, 255, 255), 0, 1);
+        if (full) {
+            meta.setChannelColor(new Color(255, 255, 255, 255), 0, 2);
+            meta.setChannelColor(new Color(255, 255, 0, 255), 0, 3);
+        }
+
+        new File(name).delete();
+        TiffWriter writer = new TiffWriter();
+        try {
+            writer.setMetadataRetrieve(meta);
+            writer.setCompression(TiffWriter.COMPRESSION_LZW);
+            writer.setBigTiff((long) width * height * nSlices * nChannels * (bitDepth / 8) > Integer.MAX_VALUE);
+            writer.setWriteSequentially(true);
+            writer.setInterleaved(false);
+            writer.setId(name);
+
+            ImageStack stack = img.getStack();
+            int planeIndex = 0;
+            for (int z = 0; z < nSlices; z++) {
+                ImageProcessor somaIp = drawPlanes(somaPlanes.get(z), width, height, bitDepth);
+                ByteProcessor cellIp = new ByteProcessor(width, height);
+                cellMask.drawPlane(z, (byte[]) cellIp.getPixels(), (byte) 255);
+                writer.saveBytes(planeIndex++, toBytes(somaIp));
+                writer.saveBytes(planeIndex++, toBytes(convert(cellIp, bitDepth)));
+                if (full) {
+                    writer.saveBytes(planeIndex++, toBytes(stack.getProcessor(z+1)));
+                    writer.saveBytes(planeIndex++, toBytes(drawLabels(somaLabels.get(z), width, height, bitDepth)));
+                }
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+
+    /**
+     * Draw objects planes at 255 in a new slice
+     */
+    private static ImageProcessor drawPlanes(List<Object3DPlane> planes, int width, int height, int bitDepth) {
+        ImageProcessor ip = new ByteProcessor(width, height);
+        if (planes != null) {
+            byte[] pixels = (byte[]) ip.getPixels();
+            for (Object3DPlane plane: planes)
+                for (VoxelInt v: plane.getVoxels())
+                    pixels[v.getY()*width + v.getX()] = (byte) 255;
+        }
+        return(convert(ip, bitDepth));
+    }
+
+
+    /**
+     * Draw number of each object {number, x, y} in a new slice
+     */
+    private static ImageProcessor drawLabels(List<int[]> labels, int width, int height, int bitDepth) {
+        ImageProcessor ip = new ByteProcessor(width, height);
+        if (labels != null) {
+            ip.setFont(FONT);
+            ip.setColor(255);
+            for (int[] label: labels)
+                ip.drawString(String.valueOf(label[0]), label[1], label[2]);
+        }
+        return(convert(ip, bitDepth));
+    }
+
+
+    private static ImageProcessor convert(ImageProcessor ip, int bitDepth) {
+        if (bitDepth == 16)
+            return(ip.convertToShort(false));
+        if (bitDepth == 32)
+            return(ip.convertToFloat());
+        return(ip);
+    }
+
+
+    /**
+     * Little-endian bytes of a slice
+     */
+    private static byte[] toBytes(ImageProcessor ip) {
+        Object pixels = ip.getPixels();
+        if (pixels instanceof short[])
+            return(DataTools.shortsToBytes((short[]) pixels, true));
+        if (pixels instanceof float[])
+            return(DataTools.floatsToBytes((float[]) pixels, true));
+        return((byte[]) pixels);
+    }
+}
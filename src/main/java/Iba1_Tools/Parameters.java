@@ -0,0 +1,242 @@
+package Iba1_Tools;
+
+import Iba1_Tools.Cellpose.MaskCache;
+import Iba1_Tools.Filters.FilterBackend;
+import Iba1_Tools.Filters.FilterBackends;
+import ij.measure.Calibration;
+import ij.process.AutoThresholder;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * Immutable snapshot of the analysis parameters of a run
+ * Built once after the dialog box and shared by all pipeline workers
+ * @author Héloïse Monnet
+ */
+public final class Parameters {
+
+    // Channel
+    public final String channel;
+    public final int channelIndex;
+
+    // Image calibration
+    public final double pixelWidth;
+    public final double pixelDepth;
+    public final double pixVol;
+    public final boolean calibFromImages;
+
+    // Soma detection
+    public final String cellposeEnvDir;
+    public final String cellposeModelPath;
+    public final String cellposeModel;
+    public final int cellposeDiam;
+    public final double cellposeStitchTh;
+    public final boolean cellposeWorker;
+    public final boolean cellposeRawExchange;
+    public final boolean cellposeGpu;
+    // Cellpose processes running at once, python threads of each (0 = default), minutes before a hung process is killed
+    public final int cellposeProcesses;
+    public final int cellposeThreads;
+    public final long cellposeTimeoutMin;
+    // Cellpose labels cache, null if disabled
+    public final MaskCache maskCache;
+    public final double minSomaVol;
+    public final double maxSomaVol;
+
+    // Cells segmentation
+    public final String cellThMethod;
+    // Threshold methods measured, cellThMethod first then the compared ones
+    public final List<String> thMethods;
+    public final double minCellVol;
+    // Filters backend as chosen (Auto, CPU or CLIJ2), and the one it resolved to on this machine
+    public final String filterBackend;
+    public final FilterBackend filters;
+
+    // Batch processing
+    public final String overlayMode;
+    public final boolean resume;
+    public final ReaderCache readerCache;
+    public final int planeCacheMB;
+    public final int queueSize;
+    public final int readThreads;
+    public final int segThreads;
+    public final int somaThreads;
+    public final int cellposeBatchSize;
+    // Send Cellpose the padded bounding box of cells mask only
+    public final boolean cellposeCrop;
+    public final int measureThreads;
+    public final int writeThreads;
+
+
+    public Parameters(Tools tools, String channel, int channelIndex) {
+        this.channel = channel;
+        this.channelIndex = channelIndex;
+
+        this.pixelWidth = tools.cal.pixelWidth;
+        this.pixelDepth = tools.cal.pixelDepth;
+        this.pixVol = pixelWidth * pixelWidth * pixelDepth;
+        this.calibFromImages = tools.calibFromImages;
+
+        this.cellposeEnvDir = tools.cellposeEnvDir;
+        this.cellposeModelPath = tools.cellposeModelPath;
+        this.cellposeModel = tools.cellposeModel;
+        this.cellposeDiam = tools.cellposeDiam;
+        this.cellposeStitchTh = tools.cellposeStitchTh;
+        this.cellposeWorker = tools.cellposeWorker;
+        this.cellposeRawExchange = tools.cellposeRawExchange;
+        this.cellposeGpu = tools.cellposeGpu;
+        this.cellposeProcesses = Math.max(1, tools.cellposeProcesses);
+        this.cellposeThreads = Math.max(0, tools.cellposeThreads);
+        this.cellposeTimeoutMin = Math.max(1, (long) tools.cellposeTimeoutMin);
+        this.maskCache = (tools.maskCacheGB > 0 && !tools.maskCacheDir.isEmpty()) ?
+                new MaskCache(new File(tools.maskCacheDir), (long) (tools.maskCacheGB * 1024 * 1024 * 1024)) : null;
+        this.minSomaVol = tools.minSomaVol;
+        this.maxSomaVol = tools.maxSomaVol;
+
+        this.cellThMethod = tools.cellThMethod;
+        this.thMethods = thMethods(tools.cellThMethod, tools.thresholdSweep);
+        this.minCellVol = tools.minCellVol;
+        this.filterBackend = tools.filterBackend;
+        this.filters = FilterBackends.get(tools.filterBackend);
+
+        this.overlayMode = tools.overlayMode;
+        this.resume = tools.resume;
+        this.readerCache = new ReaderCache(tools.readerCacheDir);
+        this.planeCacheMB = Math.max(0, tools.planeCacheMB);
+        this.queueSize = Math.max(1, tools.queueSize);
+        this.readThreads = Math.max(1, tools.readThreads);
+        this.segThreads = Math.max(1, tools.segThreads);
+        this.somaThreads = Math.max(1, tools.somaThreads);
+        this.cellposeBatchSize = Math.max(1, tools.cellposeBatchSize);
+        this.cellposeCrop = tools.cellposeCrop;
+        this.measureThreads = Math.max(1, tools.measureThreads);
+        this.writeThreads = Math.max(1, tools.writeThreads);
+    }
+
+
+    /**
+     * Same parameters with another image calibration
+     */
+    private Parameters(Parameters base, double pixelWidth, double pixelDepth) {
+        this.channel = base.channel;
+        this.channelIndex = base.channelIndex;
+
+        this.pixelWidth = pixelWidth;
+        this.pixelDepth = pixelDepth;
+        this.pixVol = pixelWidth * pixelWidth * pixelDepth;
+        this.calibFromImages = base.calibFromImages;
+
+        this.cellposeEnvDir = base.cellposeEnvDir;
+        this.cellposeModelPath = base.cellposeModelPath;
+        this.cellposeModel = base.cellposeModel;
+        this.cellposeDiam = base.cellposeDiam;
+        this.cellposeStitchTh = base.cellposeStitchTh;
+        this.cellposeWorker = base.cellposeWorker;
+        this.cellposeRawExchange = base.cellposeRawExchange;
+        this.cellposeGpu = base.cellposeGpu;
+        this.cellposeProcesses = base.cellposeProcesses;
+        this.cellposeThreads = base.cellposeThreads;
+        this.cellposeTimeoutMin = base.cellposeTimeoutMin;
+        this.maskCache = base.maskCache;
+        this.minSomaVol = base.minSomaVol;
+        this.maxSomaVol = base.maxSomaVol;
+
+        this.cellThMethod = base.cellThMethod;
+        this.thMethods = base.thMethods;
+        this.minCellVol = base.minCellVol;
+        this.filterBackend = base.filterBackend;
+        this.filters = base.filters;
+
+        this.overlayMode = base.overlayMode;
+        this.resume = base.resume;
+        this.readerCache = base.readerCache;
+        this.planeCacheMB = base.planeCacheMB;
+        this.queueSize = base.queueSize;
+        this.readThreads = base.readThreads;
+        this.segThreads = base.segThreads;
+        this.somaThreads = base.somaThreads;
+        this.cellposeBatchSize = base.cellposeBatchSize;
+        this.cellposeCrop = base.cellposeCrop;
+        this.measureThreads = base.measureThreads;
+        this.writeThreads = base.writeThreads;
+    }
+
+
+    /**
+     * Threshold methods list: main method, then the comma-separated sweep ones (All = every AutoThresholder method), without duplicates
+     */
+    private static List<String> thMethods(String main, String sweep) {
+        List<String> all = Arrays.asList(AutoThresholder.getMethods());
+        ArrayList<String> methods = new ArrayList<>();
+        methods.add(main);
+        for (String m: sweep.split(",")) {
+            m = m.trim();
+            if (m.isEmpty())
+                continue;
+            if (m.equalsIgnoreCase("All")) {
+                for (String a: all)
+                    if (!methods.contains(a))
+                        methods.add(a);
+                continue;
+            }
+            String method = null;
+            for (String a: all)
+                if (a.equalsIgnoreCase(m))
+                    method = a;
+            if (method == null)
+                throw new IllegalArgumentException("Unknown threshold method " + m + ", expected one of " + String.join(", ", all));
+            if (!methods.contains(method))
+                methods.add(method);
+        }
+        return(Collections.unmodifiableList(methods));
+    }
+
+
+    /**
+     * Return parameters with calibration of a given image
+     */
+    public Parameters withCalibration(Calibration cal) {
+        return(new Parameters(this, cal.pixelWidth, cal.pixelDepth));
+    }
+
+
+    /**
+     * Parameters changing the results, one per line
+     * Runs with the same description give the same results
+     * Filters backend is the chosen one, so that Auto runs on GPU and CPU nodes can be resumed and merged
+     */
+    public String describe() {
+        return("channel=" + channel + "\n"
+                + "pixelWidth=" + pixelWidth + "\n"
+                + "pixelDepth=" + pixelDepth + "\n"
+                + "calibFromImages=" + calibFromImages + "\n"
+                + "cellposeModel=" + cellposeModelPath + cellposeModel + "\n"
+                + "cellposeDiam=" + cellposeDiam + "\n"
+                + "cellposeStitchTh=" + cellposeStitchTh + "\n"
+                + "cellposeCrop=" + cellposeCrop + "\n"
+                + "minSomaVol=" + minSomaVol + "\n"
+                + "maxSomaVol=" + maxSomaVol + "\n"
+                + "cellThMethod=" + cellThMethod + "\n"
+                + "thMethods=" + String.join(",", thMethods) + "\n"
+                + "minCellVol=" + minCellVol + "\n"
+                + "filters=" + filterBackend + "\n"
+                + "overlayMode=" + overlayMode + "\n");
+    }
+
+
+    /**
+     * Return a new calibration object, safe to be modified by the caller
+     */
+    public Calibration getCalibration() {
+        Calibration cal = new Calibration();
+        cal.pixelWidth = pixelWidth;
+        cal.pixelHeight = pixelWidth;
+        cal.pixelDepth = pixelDepth;
+        cal.setUnit("microns");
+        return(cal);
+    }
+}
@@ -0,0 +1,282 @@
+package Iba1_Tools;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/**
+ * Staged batch pipeline: each stage has its own worker threads,
+ * stages are connected by bounded queues so that only a few images are in memory at once
+ * Jobs are handed to the final sink in their original order
+ * With an error handler, a failing image is set aside and the other images go on
+ * @author Héloïse Monnet
+ */
+public class Pipeline {
+
+    /**
+     * Work done by a stage on one image
+     */
+    public interface StageTask {
+        void process(ImageJob job) throws Exception;
+    }
+
+    /**
+     * Work done by a stage on a batch of images at once
+     */
+    public interface BatchTask {
+        void process(List<ImageJob> jobs) throws Exception;
+    }
+
+    /**
+     * Called in images order for each image that failed in a stage
+     */
+    public interface ErrorHandler {
+        void failed(ImageJob job) throws Exception;
+    }
+
+    private static class Stage {
+        final String name;
+        final int threads;
+        final int batchSize;
+        final BatchTask task;
+
+        Stage(String name, int threads, int batchSize, BatchTask task) {
+            this.name = name;
+            this.threads = threads;
+            this.batchSize = batchSize;
+            this.task = task;
+        }
+    }
+
+    // Marks the end of the jobs stream in a queue
+    private static final ImageJob END = new ImageJob(-1, "");
+
+    private final int queueSize;
+    private final ArrayList<Stage> stages = new ArrayList<>();
+    private final ArrayList<Thread> threads = new ArrayList<>();
+    private final AtomicReference<ExecutionException> failure = new AtomicReference<>();
+    private ErrorHandler errorHandler = null;
+
+
+    public Pipeline(int queueSize) {
+        this.queueSize = Math.max(1, queueSize);
+    }
+
+
+    /**
+     * Append a stage run by the given number of threads
+     */
+    public Pipeline addStage(String name, int nThreads, StageTask task) {
+        stages.add(new Stage(name, Math.max(1, nThreads), 1, jobs -> {
+            for (ImageJob job: jobs)
+                task.process(job);
+        }));
+        return(this);
+    }
+    
+    
+    /**
+     * Append a stage that receives up to batchSize images at once
+     * The last batch may be smaller
+     */
+    public Pipeline addBatchStage(String name, int nThreads, int batchSize, BatchTask task) {
+        stages.add(new Stage(name, Math.max(1, nThreads), Math.max(1, batchSize), task));
+        return(this);
+    }
+
+
+    /**
+     * Isolate images failures: failed jobs skip the next stages and go to the handler instead of the sink
+     * A task can also mark a job as failed by setting its error
+     */
+    public Pipeline onError(ErrorHandler handler) {
+        this.errorHandler = handler;
+        return(this);
+    }
+
+
+    /**
+     * Run all jobs through the stages, then give them to the sink in their index order
+     * Jobs indexes must go from 0 to jobs.size()-1
+     * Without error handler, the first stage failure stops the pipeline and is rethrown
+     */
+    public void run(List<ImageJob> jobs, StageTask sink) throws ExecutionException, InterruptedException {
+        ArrayList<BlockingQueue<ImageJob>> queues = new ArrayList<>();
+        for (int s = 0; s <= stages.size(); s++)
+            queues.add(new ArrayBlockingQueue<>(queueSize));
+
+        // Feed jobs in first queue
+        threads.add(new Thread(() -> {
+            try {
+                for (ImageJob job: jobs)
+                    queues.get(0).put(job);
+                queues.get(0).put(END);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "Iba1-feeder"));
+
+        for (int s = 0; s < stages.size(); s++) {
+            Stage stage = stages.get(s);
+            BlockingQueue<ImageJob> in = queues.get(s);
+            BlockingQueue<ImageJob> out = queues.get(s+1);
+            AtomicInteger running = new AtomicInteger(stage.threads);
+            for (int t = 0; t < stage.threads; t++)
+                threads.add(new Thread(() -> work(stage, in, out, running), "Iba1-" + stage.name + "-" + t));
+        }
+
+        for (Thread t: threads)
+            t.start();
+
+        // Give jobs to the sink in order, keep early ones until their turn comes
+        BlockingQueue<ImageJob> last = queues.get(stages.size());
+        TreeMap<Integer, ImageJob> pending = new TreeMap<>();
+        int next = 0;
+        try {
+            while (next < jobs.size() && failure.get() == null) {
+                ImageJob job = last.poll(1, TimeUnit.SECONDS);
+                if (job == null || job == END)
+                    continue;
+                pending.put(job.index, job);
+                while (pending.containsKey(next)) {
+                    ImageJob ready = pending.remove(next);
+                    try {
+                        if (ready.error == null)
+                            sink.process(ready);
+                        else
+                            errorHandler.failed(ready);
+                    } catch (Exception e) {
+                        fail("Results writing", ready, e);
+                        break;
+                    }
+                    next++;
+                }
+            }
+        } finally {
+            if (failure.get() != null || next < jobs.size())
+                for (Thread t: threads)
+                    t.interrupt();
+            for (Thread t: threads)
+                t.join();
+            threads.clear();
+        }
+        if (failure.get() != null)
+            throw failure.get();
+    }
+
+
+    /**
+     * Worker loop of a stage thread
+     */
+    private void work(Stage stage, BlockingQueue<ImageJob> in, BlockingQueue<ImageJob> out, AtomicInteger running) {
+        ArrayList<ImageJob> batch = new ArrayList<>(stage.batchSize);
+        boolean end = false;
+        try {
+            while (!end) {
+                // Gather a batch, stop early at the end of the stream
+                while (!end && batch.size() < stage.batchSize) {
+                    ImageJob job = in.take();
+                    if (job == END)
+                        end = true;
+                    else
+                        batch.add(job);
+                }
+                if (!batch.isEmpty()) {
+                    process(stage, batch);
+                    for (ImageJob job: batch)
+                        out.put(job);
+                    batch.clear();
+                }
+            }
+            // Let the other workers of this stage see the end too
+            in.put(END);
+            if (running.decrementAndGet() == 0)
+                out.put(END);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Throwable e) {
+            // Errors too (out of memory, missing class): this worker never puts END, so the run must end here
+            fail(stage.name, batch.isEmpty() ? null : batch.get(0), e);
+        }
+    }
+
+
+    /**
+     * Run stage task on the jobs of a batch that did not fail yet
+     * With an error handler, a failing batch is retried image by image to find which one fails
+     * Errors are not retried, they fail the whole run
+     */
+    private void process(Stage stage, List<ImageJob> batch) throws Exception {
+        ArrayList<ImageJob> todo = new ArrayList<>(batch.size());
+        for (ImageJob job: batch)
+            if (job.error == null)
+                todo.add(job);
+        if (todo.isEmpty())
+            return;
+        if (errorHandler == null) {
+            runTask(stage, todo);
+            for (ImageJob job: todo)
+                if (job.error != null)
+                    throw job.error;
+            return;
+        }
+        try {
+            runTask(stage, todo);
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            if (todo.size() == 1) {
+                todo.get(0).error = e;
+            } else {
+                System.out.println(stage.name + " failed on a batch of " + todo.size() + " images, retrying one by one");
+                for (ImageJob job: todo) {
+                    try {
+                        runTask(stage, Collections.singletonList(job));
+                    } catch (InterruptedException ie) {
+                        throw ie;
+                    } catch (Exception je) {
+                        job.error = je;
+                    }
+                }
+            }
+        }
+        for (ImageJob job: todo) {
+            if (job.error != null && job.errorStage == null) {
+                job.errorStage = stage.name;
+                System.out.println(stage.name + " failed on image " + job.rootName + ": " + job.error);
+            }
+        }
+    }
+
+
+    /**
+     * Run stage task, timed if jobs record timings
+     */
+    private static void runTask(Stage stage, List<ImageJob> jobs) throws Exception {
+        try (Timings.Span span = Timings.span(jobs, stage.name)) {
+            stage.task.process(jobs);
+        }
+    }
+
+
+    /**
+     * Record first failure and interrupt all other workers, the sink then throws it
+     */
+    private void fail(String stageName, ImageJob job, Throwable e) {
+        String msg = stageName + " failed on image " + (job == null ? "?" : job.rootName);
+        if (failure.compareAndSet(null, new ExecutionException(msg, e))) {
+            System.out.println(msg + ": " + e);
+            for (Thread t: threads)
+                if (t != Thread.currentThread())
+                    t.interrupt();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package Iba1_Tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import loci.common.services.DependencyException;
+import loci.common.services.ServiceException;
+import loci.common.services.ServiceFactory;
+import loci.formats.ChannelSeparator;
+import loci.formats.FormatException;
+import loci.formats.IFormatReader;
+import loci.formats.Memoizer;
+import loci.formats.meta.IMetadata;
+import loci.formats.services.OMEXMLService;
+import loci.plugins.util.ImageProcessorReader;
+import loci.plugins.util.LociPrefs;
+
+
+/**
+ * Bio-Formats readers with their parsed file header memoized on local disk
+ * Each image file has its own memo folder named after its path, size and modification date,
+ * so a modified file gets a new folder and is parsed again, the old folder being deleted
+ * Without cache folder, headers are memoized in a temporary folder of the session only,
+ * so that a file is still parsed once when its series are listed then read
+ * @author Héloïse Monnet
+ */
+public class ReaderCache {
+
+    // Memo folders root, null to use the session folder
+    private final File dir;
+    // Session folder, deleted on exit
+    private static File sessionDir;
+
+
+    public ReaderCache(String dir) {
+        this.dir = (dir == null || dir.isEmpty()) ? null : new File(dir);
+    }
+
+
+    /**
+     * Reader initialized on file, metadata in an OME-XML store (see metadata())
+     * Caller must close it
+     */
+    public ImageProcessorReader open(String file) throws DependencyException, ServiceException, FormatException, IOException {
+        IMetadata meta = new ServiceFactory().getInstance(OMEXMLService.class).createOMEXMLMetadata();
+        IFormatReader base = new Memoizer(LociPrefs.makeImageReader(), 0, memoDir(new File(file)));
+        ImageProcessorReader reader = new ImageProcessorReader(new ChannelSeparator(base));
+        // Pyramid sub-resolutions are not counted as series
+        reader.setFlattenedResolutions(false);
+        reader.setMetadataStore(meta);
+        reader.setId(file);
+        return(reader);
+    }
+
+
+    /**
+     * OME-XML metadata of an opened reader, parsed or restored from the memo
+     */
+    public static IMetadata metadata(ImageProcessorReader reader) {
+        return((IMetadata) reader.getMetadataStore());
+    }
+
+
+    /**
+     * Memo folder of file, previous folders of the same path are deleted
+     */
+    private File memoDir(File file) throws IOException {
+        File root = (dir != null) ? dir : sessionDir();
+        String pathKey = sha1(file.getAbsolutePath());
+        String name = pathKey + "_" + file.length() + "_" + file.lastModified();
+        File[] previous = root.listFiles((d, n) -> n.startsWith(pathKey + "_") && !n.equals(name));
+        if (previous != null)
+            for (File f: previous)
+                delete(f);
+        File memo = new File(root, name);
+        memo.mkdirs();
+        return(memo);
+    }
+
+
+    private static synchronized File sessionDir() throws IOException {
+        if (sessionDir == null) {
+            File tmp = Files.createTempDirectory("iba1_bioformats").toFile();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> delete(tmp), "iba1-bioformats-cleanup"));
+            sessionDir = tmp;
+        }
+        return(sessionDir);
+    }
+
+
+    private static String sha1(String s) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            return(String.format("%040x", new BigInteger(1, md.digest(s.getBytes(StandardCharsets.UTF_8)))));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    private static void delete(File f) {
+        File[] contents = f.listFiles();
+        if (contents != null)
+            for (File c: contents)
+                delete(c);
+        f.delete();
+    }
+}
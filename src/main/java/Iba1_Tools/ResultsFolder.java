@@ -0,0 +1,241 @@
+package Iba1_Tools;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+
+/**
+ * Results folder of a run: results.csv, errors.csv and the parameters the results were computed with
+ * A previous folder with the same parameters can be reopened to skip the images already analyzed
+ * @author Héloïse Monnet
+ */
+public class ResultsFolder {
+
+    public static final String RESULTS_HEADER = "Image name\tThreshold method\tImage vol (µm3)\tImage-ROI vol (µm3)\tIba1 bg\tSomas number\t"
+            + "Cells volume (µm3)\tCells bg-corr mean intensity\tCells bg-corr integrated intensity\n";
+    private static final String ERRORS_HEADER = "Image name\tStage\tError\n";
+    private static final String PARAMS_FILE = "parameters.txt";
+
+    public final String dir;
+    private final String overlayMode;
+    // Results rows of each image, one per threshold method
+    private final int nMethods;
+    private final Set<String> done = new HashSet<>();
+    private BufferedWriter results;
+    private BufferedWriter errors;
+
+
+    private ResultsFolder(String dir, Parameters params) {
+        this.dir = dir;
+        this.overlayMode = params.overlayMode;
+        this.nMethods = params.thMethods.size();
+    }
+
+
+    /**
+     * Open results folder of a run
+     * If resume is set, the latest folder computed with the same parameters is reused, a new one is created otherwise
+     */
+    public static ResultsFolder open(String imageDir, Parameters params, boolean resume) throws IOException {
+        String description = params.describe();
+        String prefix = "Results_" + params.cellThMethod + "_";
+        if (resume) {
+            File[] previous = new File(imageDir).listFiles(f -> f.isDirectory() && f.getName().startsWith(prefix));
+            if (previous != null) {
+                // Folder names end with their date, latest first
+                Arrays.sort(previous, (a, b) -> b.getName().compareTo(a.getName()));
+                for (File f: previous) {
+                    if (new File(f, PARAMS_FILE).exists() && readParams(f).equals(description)) {
+                        ResultsFolder folder = new ResultsFolder(f.getPath() + File.separator, params);
+                        folder.reopen();
+                        System.out.println("Resuming " + f.getName() + ", " + folder.done.size() + " image(s) already analyzed");
+                        return(folder);
+                    }
+                }
+            }
+        }
+
+        return(create(imageDir + File.separator + prefix + new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss").format(new Date()) + File.separator, params));
+    }
+
+
+    /**
+     * Open a given results folder, resumed if it already holds results with the same parameters
+     */
+    public static ResultsFolder openAt(String dir, Parameters params) throws IOException {
+        if (!dir.endsWith(File.separator))
+            dir += File.separator;
+        File paramsFile = new File(dir, PARAMS_FILE);
+        if (!paramsFile.exists())
+            return(create(dir, params));
+        if (!readParams(new File(dir)).equals(params.describe()))
+            throw new IOException(dir + " holds results computed with other parameters");
+        ResultsFolder folder = new ResultsFolder(dir, params);
+        folder.reopen();
+        System.out.println("Resuming " + dir + ", " + folder.done.size() + " image(s) already analyzed");
+        return(folder);
+    }
+
+
+    private static ResultsFolder create(String dir, Parameters params) throws IOException {
+        String description = params.describe();
+        new File(dir).mkdirs();
+        Files.write(new File(dir, PARAMS_FILE).toPath(), description.getBytes(StandardCharsets.UTF_8));
+        ResultsFolder folder = new ResultsFolder(dir, params);
+        folder.results = new BufferedWriter(new FileWriter(dir + "results.csv", false));
+        folder.results.write(RESULTS_HEADER);
+        folder.results.flush();
+        folder.errors = new BufferedWriter(new FileWriter(dir + "errors.csv", false));
+        folder.errors.write(ERRORS_HEADER);
+        folder.errors.flush();
+        return(folder);
+    }
+
+
+    private static String readParams(File dir) throws IOException {
+        return(new String(Files.readAllBytes(new File(dir, PARAMS_FILE).toPath()), StandardCharsets.UTF_8));
+    }
+
+
+    /**
+     * Merge results of several folders computed with the same parameters, such as the shards of a dataset
+     * Rows are sorted by image name and threshold method, images with results in a folder are dropped from errors of the others
+     */
+    public static void merge(List<File> dirs, File outDir) throws IOException {
+        if (dirs.isEmpty())
+            throw new IOException("No results folder to merge");
+        String description = readParams(dirs.get(0));
+        TreeMap<String, String> rows = new TreeMap<>();
+        TreeMap<String, String> errorRows = new TreeMap<>();
+        Set<String> images = new HashSet<>();
+        for (File dir: dirs) {
+            if (!readParams(dir).equals(description))
+                throw new IOException(dir + " holds results computed with other parameters than " + dirs.get(0));
+            for (String row: readRows(new File(dir, "results.csv"))) {
+                String[] cols = row.split("\t", -1);
+                rows.putIfAbsent(cols[0] + "\t" + cols[1], row);
+                images.add(cols[0]);
+            }
+            for (String row: readRows(new File(dir, "errors.csv")))
+                errorRows.put(row.split("\t", -1)[0], row);
+        }
+        errorRows.keySet().removeAll(images);
+
+        outDir.mkdirs();
+        Files.write(new File(outDir, PARAMS_FILE).toPath(), description.getBytes(StandardCharsets.UTF_8));
+        StringBuilder sb = new StringBuilder(RESULTS_HEADER);
+        for (String row: rows.values())
+            sb.append(row).append('\n');
+        Files.write(new File(outDir, "results.csv").toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+        sb = new StringBuilder(ERRORS_HEADER);
+        for (String row: errorRows.values())
+            sb.append(row).append('\n');
+        Files.write(new File(outDir, "errors.csv").toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+        System.out.println("Merged " + images.size() + " image(s) from " + dirs.size() + " folder(s) into " + outDir);
+    }
+
+
+    /**
+     * Complete rows of a table, without header
+     */
+    private static List<String> readRows(File file) throws IOException {
+        ArrayList<String> rows = new ArrayList<>();
+        if (!file.exists())
+            return(rows);
+        String[] lines = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).split("\n", -1);
+        for (int l = 1; l < lines.length - 1; l++)
+            if (!lines[l].isEmpty())
+                rows.add(lines[l]);
+        return(rows);
+    }
+
+
+    /**
+     * Keep complete results rows of images with a row for each threshold method and whose results image was written,
+     * drop an interrupted last row
+     */
+    private void reopen() throws IOException {
+        File resultsFile = new File(dir + "results.csv");
+        StringBuilder kept = new StringBuilder(RESULTS_HEADER);
+        if (resultsFile.exists()) {
+            String content = new String(Files.readAllBytes(resultsFile.toPath()), StandardCharsets.UTF_8);
+            String[] rows = content.split("\n", -1);
+            int nCols = RESULTS_HEADER.split("\t").length;
+            // Rows of each image, in file order
+            LinkedHashMap<String, List<String>> imageRows = new LinkedHashMap<>();
+            // Last element follows the last newline, it is empty unless a row was interrupted
+            for (int r = 1; r < rows.length - 1; r++) {
+                String[] cols = rows[r].split("\t", -1);
+                if (cols.length != nCols)
+                    continue;
+                imageRows.computeIfAbsent(cols[0], k -> new ArrayList<>()).add(rows[r]);
+            }
+            for (Map.Entry<String, List<String>> e: imageRows.entrySet()) {
+                if (e.getValue().size() != nMethods)
+                    continue;
+                if (!OverlayWriter.NONE.equals(overlayMode) && !new File(dir + e.getKey() + ".tif").exists())
+                    continue;
+                done.add(e.getKey());
+                for (String row: e.getValue())
+                    kept.append(row).append('\n');
+            }
+        }
+        Files.write(resultsFile.toPath(), kept.toString().getBytes(StandardCharsets.UTF_8));
+        results = new BufferedWriter(new FileWriter(resultsFile, true));
+
+        File errorsFile = new File(dir + "errors.csv");
+        boolean newErrors = !errorsFile.exists();
+        errors = new BufferedWriter(new FileWriter(errorsFile, true));
+        if (newErrors) {
+            errors.write(ERRORS_HEADER);
+            errors.flush();
+        }
+    }
+
+
+    /**
+     * Whether image results are already in this folder
+     */
+    public boolean isDone(String rootName) {
+        return(done.contains(rootName));
+    }
+
+
+    /**
+     * Append an image results row, flushed at once so that it survives a crash
+     */
+    public void writeResults(String row) throws IOException {
+        results.write(row);
+        results.flush();
+    }
+
+
+    /**
+     * Append an image failure
+     */
+    public void writeError(String rootName, String stage, Exception e) throws IOException {
+        String msg = String.valueOf(e).replace('\n', ' ').replace('\t', ' ');
+        errors.write(rootName + "\t" + stage + "\t" + msg + "\n");
+        errors.flush();
+    }
+
+
+    public void close() throws IOException {
+        results.close();
+        errors.close();
+    }
+}
@@ -0,0 +1,120 @@
+package Iba1_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.process.ByteProcessor;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+
+/**
+ * Union of the exclusion ROIs of an image, rasterized once into a 2D mask
+ * ROIs extend through all z-slices, so the mask is stored as horizontal runs of pixels (start, end)
+ * and applied to each slice with bulk fills
+ * @author Héloïse Monnet
+ */
+public class RoiMask {
+
+    public final int width;
+    public final int height;
+    // Pixels [starts[k], ends[k]) of the flattened plane are inside a ROI
+    private final int[] starts;
+    private final int[] ends;
+    private final long count;
+
+
+    private RoiMask(int width, int height, int[] starts, int[] ends) {
+        this.width = width;
+        this.height = height;
+        this.starts = starts;
+        this.ends = ends;
+        long n = 0;
+        for (int k = 0; k < starts.length; k++)
+            n += ends[k] - starts[k];
+        this.count = n;
+    }
+
+
+    /**
+     * Rasterize ROIs union, overlapping ROIs are counted once
+     */
+    public static RoiMask rasterize(List<Roi> rois, int width, int height) {
+        if (rois == null || rois.isEmpty())
+            return(new RoiMask(width, height, new int[0], new int[0]));
+        ByteProcessor ip = new ByteProcessor(width, height);
+        ip.setValue(255);
+        for (Roi roi: rois)
+            ip.fill(roi);
+        byte[] pixels = (byte[]) ip.getPixels();
+
+        int[] starts = new int[16];
+        int[] ends = new int[16];
+        int n = 0;
+        for (int y = 0; y < height; y++) {
+            int row = y*width;
+            int x = 0;
+            while (x < width) {
+                if (pixels[row + x] == 0) {
+                    x++;
+                    continue;
+                }
+                int start = x;
+                while (x < width && pixels[row + x] != 0)
+                    x++;
+                if (n == starts.length) {
+                    starts = Arrays.copyOf(starts, n*2);
+                    ends = Arrays.copyOf(ends, n*2);
+                }
+                starts[n] = row + start;
+                ends[n] = row + x;
+                n++;
+            }
+        }
+        return(new RoiMask(width, height, Arrays.copyOf(starts, n), Arrays.copyOf(ends, n)));
+    }
+
+
+    public boolean isEmpty() {
+        return(count == 0);
+    }
+
+
+    /**
+     * Number of pixels in ROIs, in one slice
+     */
+    public long count() {
+        return(count);
+    }
+
+
+    /**
+     * ROIs volume in µm3 through all slices of image
+     */
+    public double volume(ImagePlus img, Parameters params) {
+        return(count * params.pixelWidth * params.pixelWidth * img.getNSlices() * params.pixelDepth);
+    }
+
+
+    /**
+     * Fill ROIs in black in all slices of image, in parallel over slices
+     */
+    public ImagePlus clear(ImagePlus img) {
+        if (isEmpty())
+            return(img);
+        ImageStack stack = img.getStack();
+        IntStream.range(1, stack.getSize()+1).parallel().forEach(s -> {
+            Object pixels = stack.getPixels(s);
+            for (int k = 0; k < starts.length; k++) {
+                if (pixels instanceof byte[])
+                    Arrays.fill((byte[]) pixels, starts[k], ends[k], (byte) 0);
+                else if (pixels instanceof short[])
+                    Arrays.fill((short[]) pixels, starts[k], ends[k], (short) 0);
+                else
+                    Arrays.fill((float[]) pixels, starts[k], ends[k], 0f);
+            }
+        });
+        return(img);
+    }
+}
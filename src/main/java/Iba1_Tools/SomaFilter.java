@@ -0,0 +1,164 @@
+package Iba1_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.IntStream;
+import mcib3d.geom2.Object3DInt;
+import mcib3d.geom2.Objects3DIntPopulation;
+
+
+/**
+ * Somas filtering from a single scan of the labels image
+ * Per label voxels count, z-extent and overlap with each cells mask are counted in primitive arrays,
+ * in parallel over z-slabs, then the z, size and colocalization criteria are applied at once
+ * @author Héloïse Monnet
+ */
+public class SomaFilter {
+
+    // Indexed by label
+    private int[] count;
+    private int[] zMin;
+    private int[] zMax;
+    // Indexed by cells mask, then by label
+    private final int[][] overlap;
+
+
+    private SomaFilter(int nLabels, int nMasks) {
+        count = new int[nLabels];
+        zMin = new int[nLabels];
+        zMax = new int[nLabels];
+        overlap = new int[nMasks][nLabels];
+        Arrays.fill(zMin, Integer.MAX_VALUE);
+        Arrays.fill(zMax, -1);
+    }
+
+
+    /**
+     * Scan labels image and cells mask
+     */
+    public static SomaFilter measure(ImagePlus labels, BitMask cellMask) {
+        return(measure(labels, Collections.singletonList(cellMask)));
+    }
+
+
+    /**
+     * Scan labels image once for all cells masks, masks are then referred to by their index
+     */
+    public static SomaFilter measure(ImagePlus labels, List<BitMask> cellMasks) {
+        ImageStack stack = labels.getStack();
+        int nSlices = stack.getSize();
+        int nSlabs = Math.min(nSlices, Runtime.getRuntime().availableProcessors());
+        int slab = (nSlices + nSlabs - 1) / nSlabs;
+
+        List<SomaFilter> partials = new ArrayList<>();
+        for (int s = 0; s < nSlabs; s++)
+            partials.add(null);
+        IntStream.range(0, nSlabs).parallel().forEach(s -> {
+            SomaFilter part = new SomaFilter(256, cellMasks.size());
+            for (int z = s*slab; z < Math.min(nSlices, (s+1)*slab); z++) {
+                Object pixels = stack.getPixels(z+1);
+                int n = stack.getWidth() * stack.getHeight();
+                for (int i = 0; i < n; i++) {
+                    int label = label(pixels, i);
+                    if (label == 0)
+                        continue;
+                    part.grow(label);
+                    part.count[label]++;
+                    if (z < part.zMin[label])
+                        part.zMin[label] = z;
+                    if (z > part.zMax[label])
+                        part.zMax[label] = z;
+                    for (int m = 0; m < cellMasks.size(); m++) {
+                        BitMask cellMask = cellMasks.get(m);
+                        if (cellMask != null && z < cellMask.nSlices && cellMask.get(i, z))
+                            part.overlap[m][label]++;
+                    }
+                }
+            }
+            partials.set(s, part);
+        });
+
+        // Merge slabs counts
+        int nLabels = 0;
+        for (SomaFilter part: partials)
+            nLabels = Math.max(nLabels, part.count.length);
+        SomaFilter filter = new SomaFilter(nLabels, cellMasks.size());
+        for (SomaFilter part: partials) {
+            for (int l = 0; l < part.count.length; l++) {
+                filter.count[l] += part.count[l];
+                for (int m = 0; m < cellMasks.size(); m++)
+                    filter.overlap[m][l] += part.overlap[m][l];
+                filter.zMin[l] = Math.min(filter.zMin[l], part.zMin[l]);
+                filter.zMax[l] = Math.max(filter.zMax[l], part.zMax[l]);
+            }
+        }
+        return(filter);
+    }
+
+
+    private static int label(Object pixels, int i) {
+        if (pixels instanceof short[])
+            return(((short[]) pixels)[i] & 0xffff);
+        if (pixels instanceof byte[])
+            return(((byte[]) pixels)[i] & 0xff);
+        return((int) ((float[]) pixels)[i]);
+    }
+
+
+    private void grow(int label) {
+        if (label < count.length)
+            return;
+        int size = Math.max(label + 1, count.length * 2);
+        int old = count.length;
+        count = Arrays.copyOf(count, size);
+        for (int m = 0; m < overlap.length; m++)
+            overlap[m] = Arrays.copyOf(overlap[m], size);
+        zMin = Arrays.copyOf(zMin, size);
+        zMax = Arrays.copyOf(zMax, size);
+        Arrays.fill(zMin, old, size, Integer.MAX_VALUE);
+        Arrays.fill(zMax, old, size, -1);
+    }
+
+
+    /**
+     * Whether a soma is kept: in more than one slice, volume in [min, max] and at least 25% of its volume in cells mask
+     */
+    public boolean keep(int label, double min, double max, double pixelWidth, double pixelDepth) {
+        return(keep(0, label, min, max, pixelWidth, pixelDepth));
+    }
+
+
+    /**
+     * Whether a soma is kept with the cells mask of index mask
+     */
+    public boolean keep(int mask, int label, double min, double max, double pixelWidth, double pixelDepth) {
+        if (label <= 0 || label >= count.length || count[label] == 0)
+            return(false);
+        if (zMin[label] == zMax[label])
+            return(false);
+        // Same operations order as MeasureVolume.getVolumeUnit
+        double vol = count[label] * pixelWidth * pixelWidth * pixelDepth;
+        if (vol < min || vol > max)
+            return(false);
+        return(overlap[mask][label] >= 0.25*count[label]);
+    }
+
+
+    /**
+     * Population of the somas of pop kept with the cells mask of index mask, pop is left unchanged
+     * Kept objects are shared with pop, not copied
+     */
+    public Objects3DIntPopulation filter(Objects3DIntPopulation pop, int mask, double min, double max, Parameters params) {
+        Objects3DIntPopulation kept = new Objects3DIntPopulation();
+        for (Object3DInt soma: pop.getObjects3DInt())
+            if (keep(mask, (int) soma.getLabel(), min, max, params.pixelWidth, params.pixelDepth))
+                kept.addObject(soma);
+        kept.setVoxelSizeXY(params.pixelWidth);
+        kept.setVoxelSizeZ(params.pixelDepth);
+        return(kept);
+    }
+}
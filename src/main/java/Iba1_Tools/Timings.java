@@ -0,0 +1,275 @@
+package Iba1_Tools;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Wall time, CPU time and allocated bytes of each stage of each image
+ * Written to timings.csv, emitted as "iba1.Stage" JFR events when a recording is running,
+ * and summed up at the end of the run
+ * JFR is reached by reflection so that the plugin still runs on JVMs without it
+ * @author Héloïse Monnet
+ */
+public class Timings {
+
+    private static final String HEADER = "Image name\tStage\tBatch size\tWall time (ms)\tCPU time (ms)\tAllocated (MB)\tImage size (MB)\tObjects\n";
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final JfrStageEvent JFR = JfrStageEvent.create();
+
+    private final BufferedWriter out;
+    // Per stage totals: wall ns, cpu ns, allocated bytes, count, max wall ns
+    private final Map<String, long[]> totals = new LinkedHashMap<>();
+    private String slowest = null;
+    private long slowestNs = 0;
+
+
+    public Timings(String dir) throws IOException {
+        File file = new File(dir, "timings.csv");
+        boolean exists = file.exists();
+        out = new BufferedWriter(new FileWriter(file, true));
+        if (!exists) {
+            out.write(HEADER);
+            out.flush();
+        }
+    }
+
+
+    /**
+     * Measure a stage done on the current thread for some images
+     * Usage: try (Timings.Span span = Timings.span(jobs, "Cellpose")) { ... }
+     */
+    public static Span span(List<ImageJob> jobs, String stage) {
+        return(new Span(jobs, stage));
+    }
+
+
+    public static Span span(ImageJob job, String stage) {
+        return(new Span(Collections.singletonList(job), stage));
+    }
+
+
+    /**
+     * Running measure, records one row per image on close, costs split evenly between images of a batch
+     */
+    public static class Span implements AutoCloseable {
+
+        private final List<ImageJob> jobs;
+        private final String stage;
+        private final Timings timings;
+        private final Object event;
+        private final long wall0;
+        private final long cpu0;
+        private final long alloc0;
+        // Images and objects sizes at start, stages may release them
+        private final long[] bytes0;
+        private final int[] objects0;
+
+
+        private Span(List<ImageJob> jobs, String stage) {
+            this.jobs = jobs;
+            this.stage = stage;
+            this.timings = jobs.isEmpty() ? null : jobs.get(0).timings;
+            this.bytes0 = new long[jobs.size()];
+            this.objects0 = new int[jobs.size()];
+            if (timings != null) {
+                for (int i = 0; i < jobs.size(); i++) {
+                    bytes0[i] = imageBytes(jobs.get(i));
+                    objects0[i] = objects(jobs.get(i));
+                }
+            }
+            this.event = (timings == null || JFR == null) ? null : JFR.begin();
+            this.wall0 = System.nanoTime();
+            this.cpu0 = cpuTime();
+            this.alloc0 = allocatedBytes();
+        }
+
+
+        @Override
+        public void close() {
+            if (timings == null)
+                return;
+            long wall = System.nanoTime() - wall0;
+            long cpu = (cpu0 < 0) ? -1 : cpuTime() - cpu0;
+            long alloc = (alloc0 < 0) ? -1 : allocatedBytes() - alloc0;
+            int n = jobs.size();
+            StringBuilder names = new StringBuilder();
+            long totalBytes = 0;
+            int totalObjects = 0;
+            for (int i = 0; i < n; i++) {
+                ImageJob job = jobs.get(i);
+                long bytes = Math.max(bytes0[i], imageBytes(job));
+                int objects = Math.max(objects0[i], objects(job));
+                timings.record(job, stage, n, wall/n, cpu/n, alloc/n, bytes, objects);
+                names.append(i == 0 ? "" : ",").append(job.rootName);
+                totalBytes += bytes;
+                totalObjects += objects;
+            }
+            if (event != null)
+                JFR.commit(event, names.toString(), stage, cpu, alloc, totalBytes, totalObjects);
+        }
+    }
+
+
+    private synchronized void record(ImageJob job, String stage, int batchSize, long wall, long cpu, long alloc, long bytes, int objects) {
+        try {
+            out.write(job.rootName + "\t" + stage + "\t" + batchSize + "\t" + wall/1e6 + "\t" + (cpu < 0 ? "" : cpu/1e6) + "\t" +
+                    (alloc < 0 ? "" : alloc/1048576.0) + "\t" + bytes/1048576.0 + "\t" + objects + "\n");
+            out.flush();
+        } catch (IOException e) {
+            System.out.println("Cannot write timings: " + e.getMessage());
+        }
+        long[] t = totals.computeIfAbsent(stage, s -> new long[5]);
+        t[0] += wall;
+        t[1] += Math.max(0, cpu);
+        t[2] += Math.max(0, alloc);
+        t[3]++;
+        t[4] = Math.max(t[4], wall);
+        if (wall > slowestNs) {
+            slowestNs = wall;
+            slowest = stage + " of " + job.rootName;
+        }
+    }
+
+
+    /**
+     * Print throughput and stages sorted from the slowest, then close timings file
+     */
+    public synchronized void summary(int nImages, long elapsedNs) throws IOException {
+        out.close();
+        if (nImages == 0)
+            return;
+        System.out.println(String.format("--- %d image(s) in %.1f min: %.1f images/hour ---", nImages, elapsedNs/6e10, nImages*3.6e12/elapsedNs));
+        List<Map.Entry<String, long[]>> stages = new ArrayList<>(totals.entrySet());
+        stages.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+        for (Map.Entry<String, long[]> e: stages) {
+            long[] t = e.getValue();
+            System.out.println(String.format("%-28s total %8.1f s, mean %7.2f s, max %7.2f s, CPU %8.1f s, allocated %8.1f MB",
+                    e.getKey(), t[0]/1e9, t[0]/1e9/t[3], t[4]/1e9, t[1]/1e9, t[2]/1048576.0));
+        }
+        if (slowest != null)
+            System.out.println(String.format("Slowest: %s (%.2f s)", slowest, slowestNs/1e9));
+    }
+
+
+    private static long cpuTime() {
+        return(THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : -1);
+    }
+
+
+    private static long allocatedBytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean)
+            return(((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId()));
+        return(-1);
+    }
+
+
+    private static long imageBytes(ImageJob job) {
+        return(job.imgIba1 == null ? 0 : (long) job.imgIba1.getWidth() * job.imgIba1.getHeight() * job.imgIba1.getStackSize() * job.imgIba1.getBytesPerPixel());
+    }
+
+
+    private static int objects(ImageJob job) {
+        // Somas of the main threshold method
+        return(job.somaPops == null || job.somaPops.isEmpty() ? 0 : job.somaPops.values().iterator().next().getNbObjects());
+    }
+
+
+    /**
+     * "iba1.Stage" JFR event type, built with jdk.jfr.EventFactory
+     * Fields: image, stage, cpuTime, allocated, imageSize, objects
+     */
+    private static class JfrStageEvent {
+
+        private final Object factory;
+        private final Method newEvent;
+        private final Method begin;
+        private final Method end;
+        private final Method shouldCommit;
+        private final Method set;
+        private final Method commit;
+
+
+        private JfrStageEvent(Object factory) throws ReflectiveOperationException {
+            Class<?> eventClass = Class.forName("jdk.jfr.Event");
+            this.factory = factory;
+            this.newEvent = factory.getClass().getMethod("newEvent");
+            this.begin = eventClass.getMethod("begin");
+            this.end = eventClass.getMethod("end");
+            this.shouldCommit = eventClass.getMethod("shouldCommit");
+            this.set = eventClass.getMethod("set", int.class, Object.class);
+            this.commit = eventClass.getMethod("commit");
+        }
+
+
+        /**
+         * Event type, null if JFR is not available
+         */
+        static JfrStageEvent create() {
+            try {
+                Class<?> annotationClass = Class.forName("jdk.jfr.AnnotationElement");
+                Class<?> descriptorClass = Class.forName("jdk.jfr.ValueDescriptor");
+                Constructor<?> annotation = annotationClass.getConstructor(Class.class, Object.class);
+                Constructor<?> field = descriptorClass.getConstructor(Class.class, String.class, List.class);
+                List<Object> annotations = Arrays.asList(
+                        annotation.newInstance(Class.forName("jdk.jfr.Name"), "iba1.Stage"),
+                        annotation.newInstance(Class.forName("jdk.jfr.Label"), "Iba1 Stage"),
+                        annotation.newInstance(Class.forName("jdk.jfr.Category"), new String[] {"Iba1"}));
+                Object nanos = annotation.newInstance(Class.forName("jdk.jfr.Timespan"), "NANOSECONDS");
+                Object bytes = annotation.newInstance(Class.forName("jdk.jfr.DataAmount"), "BYTES");
+                List<Object> fields = Arrays.asList(
+                        field.newInstance(String.class, "image", Collections.emptyList()),
+                        field.newInstance(String.class, "stage", Collections.emptyList()),
+                        field.newInstance(long.class, "cpuTime", Collections.singletonList(nanos)),
+                        field.newInstance(long.class, "allocated", Collections.singletonList(bytes)),
+                        field.newInstance(long.class, "imageSize", Collections.singletonList(bytes)),
+                        field.newInstance(int.class, "objects", Collections.emptyList()));
+                Object factory = Class.forName("jdk.jfr.EventFactory").getMethod("create", List.class, List.class).invoke(null, annotations, fields);
+                return(new JfrStageEvent(factory));
+            } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+                return(null);
+            }
+        }
+
+
+        Object begin() {
+            try {
+                Object event = newEvent.invoke(factory);
+                begin.invoke(event);
+                return(event);
+            } catch (ReflectiveOperationException e) {
+                return(null);
+            }
+        }
+
+
+        void commit(Object event, String image, String stage, long cpu, long alloc, long imageSize, int objects) {
+            try {
+                end.invoke(event);
+                if (!(Boolean) shouldCommit.invoke(event))
+                    return;
+                set.invoke(event, 0, image);
+                set.invoke(event, 1, stage);
+                set.invoke(event, 2, cpu);
+                set.invoke(event, 3, alloc);
+                set.invoke(event, 4, imageSize);
+                set.invoke(event, 5, objects);
+                commit.invoke(event);
+            } catch (ReflectiveOperationException e) {
+                // Events are best effort, timings file is still written
+            }
+        }
+    }
+}
@@ -2,43 +2,49 @@ package Iba1_Tools;
 
 import Iba1_Tools.Cellpose.CellposeSegmentImgPlusAdvanced;
 import Iba1_Tools.Cellpose.CellposeTaskSettings;
+import Iba1_Tools.Cellpose.MaskCache;
+import Iba1_Tools.Filters.BackgroundEstimator;
+import Iba1_Tools.Filters.CPUBackend;
+import Iba1_Tools.Filters.FilterBackends;
+import Iba1_Tools.Filters.FilteredStack;
 import fiji.util.gui.GenericDialogPlus;
 import ij.IJ;
 import ij.ImagePlus;
-import ij.gui.PolygonRoi;
+import ij.ImageStack;
 import ij.gui.Roi;
-import ij.io.FileSaver;
+import ij.io.RoiDecoder;
 import ij.measure.Calibration;
-import ij.measure.ResultsTable;
-import ij.plugin.RGBStackMerge;
-import ij.plugin.ZProjector;
-import ij.plugin.filter.Analyzer;
 import ij.process.AutoThresholder;
 import ij.process.ImageProcessor;
 import java.awt.Color;
 import java.awt.Font;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.DoubleAccumulator;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 import javax.swing.ImageIcon;
 import loci.common.services.DependencyException;
 import loci.common.services.ServiceException;
 import loci.formats.FormatException;
 import loci.formats.meta.IMetadata;
 import loci.plugins.util.ImageProcessorReader;
-import mcib3d.geom2.BoundingBox;
-import mcib3d.geom2.Object3DInt;
 import mcib3d.geom2.Objects3DIntPopulation;
 import mcib3d.geom2.measurements.MeasureVolume;
-import mcib3d.geom2.measurementsPopulation.MeasurePopulationColocalisation;
 import mcib3d.image3d.ImageHandler;
-import mcib3d.image3d.ImageInt;
-import mcib3d.image3d.ImageLabeller;
-import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
-import net.haesleinhuepf.clij2.CLIJ2;
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
 
 
 /**
@@ -49,23 +55,48 @@ public class Tools {
     public final ImageIcon icon = new ImageIcon(this.getClass().getResource("/Orion_icon.png"));
     private final String helpUrl = "https://github.com/orion-cirb/Iba1";
     
-    private final CLIJ2 clij2 = CLIJ2.getInstance();
-    
     public Calibration cal = new Calibration();
     public double pixVol;
+    public boolean calibFromImages = true;
     
     // Soma detection
     public String cellposeEnvDir = IJ.isWindows()? System.getProperty("user.home")+File.separator+"miniconda3"+File.separator+"envs"+File.separator+"CellPose" : "/opt/miniconda3/envs/cellpose";
-    public final String cellposeModelPath = IJ.isWindows()? System.getProperty("user.home")+"\\.cellpose\\models\\" : "";
+    public String cellposeModelPath = IJ.isWindows()? System.getProperty("user.home")+"\\.cellpose\\models\\" : "";
     public String cellposeModel = "cyto2_Iba1_microglia";
     public int cellposeDiam = 60;
     public double cellposeStitchTh = 0.5;
+    public boolean cellposeWorker = true;
+    public boolean cellposeRawExchange = true;
+    public boolean cellposeGpu = true;
+    public int cellposeProcesses = 1;
+    public int cellposeThreads = 0;
+    public double cellposeTimeoutMin = 60;
+    public String maskCacheDir = System.getProperty("user.home")+File.separator+".cellpose"+File.separator+"iba1_masks_cache";
+    public double maskCacheGB = 10;
     public double minSomaVol = 50;
     public double maxSomaVol = 800;
     
     // Cells segmentation
     public String cellThMethod = "Otsu";
+    // Other threshold methods measured on the same median filtered image, comma-separated or All
+    public String thresholdSweep = "";
     public double minCellVol = 0.5;
+    public String filterBackend = FilterBackends.AUTO;
+    
+    // Batch processing
+    public String overlayMode = OverlayWriter.FULL;
+    public boolean resume = true;
+    public String readerCacheDir = System.getProperty("user.home")+File.separator+".iba1"+File.separator+"bioformats_cache";
+    public int planeCacheMB = 0;
+    public int queueSize = 1;
+    public int readThreads = 1;
+    public int segThreads = 1;
+    public int somaThreads = 1;
+    public int measureThreads = 2;
+    public int cellposeBatchSize = 4;
+    // Off by default: Cellpose on a crop may find slightly different somas than on the whole stack
+    public boolean cellposeCrop = false;
+    public int writeThreads = 1;
     
     
     /**
@@ -92,8 +123,7 @@ public class Tools {
         try {
             loader.loadClass("net.haesleinhuepf.clij2.CLIJ2");
         } catch (ClassNotFoundException e) {
-            IJ.log("CLIJ2 not installed, please install from update site");
-            return false;
+            IJ.log("CLIJ2 not installed, filters will run on CPU");
         }
         return true;
     }
@@ -163,22 +193,72 @@ public class Tools {
     }
     
     
+    /**
+     * Load ROIs of an image from its .zip or .roi file, empty list if there is none
+     * Read without RoiManager, so that it also works headless
+     */
+    public ArrayList<Roi> loadRois(String imageDir, String rootName) throws IOException {
+        ArrayList<Roi> rois = new ArrayList<>();
+        File zip = new File(imageDir, rootName + ".zip");
+        File roi = new File(imageDir, rootName + ".roi");
+        if (zip.exists()) {
+            try (ZipInputStream in = new ZipInputStream(new FileInputStream(zip))) {
+                ZipEntry entry;
+                while ((entry = in.getNextEntry()) != null) {
+                    if (!entry.getName().endsWith(".roi"))
+                        continue;
+                    Roi r = new RoiDecoder(IOUtils.toByteArray(in), entry.getName()).getRoi();
+                    if (r != null)
+                        rois.add(r);
+                }
+            }
+        } else if (roi.exists()) {
+            Roi r = RoiDecoder.open(roi.getPath());
+            if (r != null)
+                rois.add(r);
+        }
+        return(rois);
+    }
+    
+    
     /**
      * Find image calibration
      */
     public Calibration findImageCalib(IMetadata meta) {
-        cal.pixelWidth = meta.getPixelsPhysicalSizeX(0).value().doubleValue();
-        cal.pixelHeight = cal.pixelWidth;
-        if (meta.getPixelsPhysicalSizeZ(0) != null)
-            cal.pixelDepth = meta.getPixelsPhysicalSizeZ(0).value().doubleValue();
-        else
-            cal.pixelDepth = 1;
-        cal.setUnit("microns");
+        Calibration imgCal = readImageCalib(meta);
+        if (imgCal != null)
+            cal = imgCal;
         System.out.println("XY calibration = " + cal.pixelWidth + ", Z calibration = " + cal.pixelDepth);
         return(cal);
     }
     
     
+    /**
+     * Read image calibration from metadata, null if XY calibration is missing
+     */
+    public Calibration readImageCalib(IMetadata meta) {
+        return(readImageCalib(meta, 0));
+    }
+    
+    
+    /**
+     * Read calibration of a series from metadata, null if XY calibration is missing
+     */
+    public Calibration readImageCalib(IMetadata meta, int series) {
+        if (meta.getPixelsPhysicalSizeX(series) == null)
+            return(null);
+        Calibration imgCal = new Calibration();
+        imgCal.pixelWidth = meta.getPixelsPhysicalSizeX(series).value().doubleValue();
+        imgCal.pixelHeight = imgCal.pixelWidth;
+        if (meta.getPixelsPhysicalSizeZ(series) != null)
+            imgCal.pixelDepth = meta.getPixelsPhysicalSizeZ(series).value().doubleValue();
+        else
+            imgCal.pixelDepth = 1;
+        imgCal.setUnit("microns");
+        return(imgCal);
+    }
+    
+    
     /**
      * Find channels name
      * @throws loci.common.services.DependencyException
@@ -228,8 +308,9 @@ public class Tools {
     
     /**
      * Generate dialog box
+     * Return run parameters, null if dialog was canceled
      */
-    public String dialog(String imagesDir, String[] channels) {
+    public Parameters dialog(String imagesDir, String[] channels) {
         GenericDialogPlus gd = new GenericDialogPlus("Parameters");
         gd.setInsets​(0, 80, 0);
         gd.addImage(icon);
@@ -240,15 +321,40 @@ public class Tools {
         gd.addMessage("Somas detection", Font.getFont("Monospace"), Color.blue);
         gd.addNumericField("Min volume (µm3): ", minSomaVol, 2);
         gd.addNumericField("Max volume (µm3): ", maxSomaVol, 2);
+        gd.addCheckbox("Keep Cellpose model loaded between images", cellposeWorker);
+        gd.addCheckbox("Exchange raw buffers with loaded model (no TIFF)", cellposeRawExchange);
+        gd.addCheckbox("Run Cellpose on GPU", cellposeGpu);
+        gd.addNumericField("Cellpose processes at once: ", cellposeProcesses, 0);
+        gd.addNumericField("Threads per Cellpose process (0 = all): ", cellposeThreads, 0);
+        gd.addNumericField("Cellpose timeout (min): ", cellposeTimeoutMin, 0);
+        gd.addDirectoryField("Masks cache folder: ", maskCacheDir);
+        gd.addNumericField("Masks cache size (GB, 0 = no cache): ", maskCacheGB, 1);
         
         gd.addMessage("Cells segmentation", Font.getFont("Monospace"), Color.blue);
         String[] thMethods = AutoThresholder.getMethods();
         gd.addChoice("Threshold method: ", thMethods, cellThMethod);
+        gd.addStringField("Also compare methods (comma-separated, All): ", thresholdSweep, 20);
         gd.addNumericField("Min volume (µm3): ", minCellVol, 2);
+        gd.addChoice("Filters backend: ", FilterBackends.CHOICES, filterBackend);
         
         gd.addMessage("Image calibration", Font.getFont("Monospace"), Color.blue);
         gd.addNumericField("XY calibration (µm): ", cal.pixelHeight, 3);
         gd.addNumericField("Z calibration (µm): ", cal.pixelDepth, 3);
+        gd.addCheckbox("Read calibration of each image (values above used if missing)", calibFromImages);
+        
+        gd.addMessage("Batch processing", Font.getFont("Monospace"), Color.blue);
+        gd.addChoice("Results images: ", OverlayWriter.MODES, overlayMode);
+        gd.addCheckbox("Resume previous run with the same parameters", resume);
+        gd.addDirectoryField("Bio-Formats cache folder (empty = none): ", readerCacheDir);
+        gd.addNumericField("Planes cache (MB, 0 = load whole image): ", planeCacheMB, 0);
+        gd.addNumericField("Queue size between stages: ", queueSize, 0);
+        gd.addNumericField("Reading threads: ", readThreads, 0);
+        gd.addNumericField("Segmentation threads: ", segThreads, 0);
+        gd.addNumericField("Somas detection threads: ", somaThreads, 0);
+        gd.addNumericField("Images per Cellpose call: ", cellposeBatchSize, 0);
+        gd.addCheckbox("Send only cells region to Cellpose", cellposeCrop);
+        gd.addNumericField("Measurement threads: ", measureThreads, 0);
+        gd.addNumericField("Writing threads: ", writeThreads, 0);
         gd.addHelp(helpUrl);
         gd.showDialog();
         
@@ -256,17 +362,41 @@ public class Tools {
         
         minSomaVol = gd.getNextNumber();
         maxSomaVol = gd.getNextNumber();
+        cellposeWorker = gd.getNextBoolean();
+        cellposeRawExchange = gd.getNextBoolean();
+        cellposeGpu = gd.getNextBoolean();
+        cellposeProcesses = (int) gd.getNextNumber();
+        cellposeThreads = (int) gd.getNextNumber();
+        cellposeTimeoutMin = gd.getNextNumber();
+        maskCacheDir = gd.getNextString();
+        maskCacheGB = gd.getNextNumber();
         
         cellThMethod = gd.getNextChoice();
+        thresholdSweep = gd.getNextString();
         minCellVol = gd.getNextNumber();
+        filterBackend = gd.getNextChoice();
         
         cal.pixelHeight = cal.pixelWidth = gd.getNextNumber();
         cal.pixelDepth = gd.getNextNumber();
+        calibFromImages = gd.getNextBoolean();
         pixVol = cal.pixelHeight*cal.pixelWidth*cal.pixelDepth;
         
+        overlayMode = gd.getNextChoice();
+        resume = gd.getNextBoolean();
+        readerCacheDir = gd.getNextString();
+        planeCacheMB = (int) gd.getNextNumber();
+        queueSize = (int) gd.getNextNumber();
+        readThreads = (int) gd.getNextNumber();
+        segThreads = (int) gd.getNextNumber();
+        somaThreads = (int) gd.getNextNumber();
+        cellposeBatchSize = (int) gd.getNextNumber();
+        cellposeCrop = gd.getNextBoolean();
+        measureThreads = (int) gd.getNextNumber();
+        writeThreads = (int) gd.getNextNumber();
+        
         if (gd.wasCanceled())
-            channel = null;
-        return(channel);
+            return(null);
+        return(new Parameters(this, channel, Arrays.asList(channels).indexOf(channel)));
     }
     
     
@@ -274,211 +404,476 @@ public class Tools {
      * Flush and close an image
      */
     public void closeImage(ImagePlus img) {
+        if (img.getStack() instanceof CachedReaderStack)
+            ((CachedReaderStack) img.getStack()).close();
         img.flush();
         img.close();
     }
     
+    
+    /**
+     * Names of the series of each image file, files headers are parsed in parallel on the reading threads
+     * Headers are memoized (see ReaderCache), so the Reading stage restores them instead of parsing the files again
+     * A file that cannot be opened gets no series and is reported in the errors file
+     */
+    public List<List<String>> findSeries(List<String> files, Parameters params, ResultsFolder results) throws IOException, InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(params.readThreads, Math.max(1, files.size())));
+        try {
+            List<Future<List<String>>> futures = new ArrayList<>();
+            for (String file: files)
+                futures.add(pool.submit(() -> findSeries(file, params)));
+            List<List<String>> series = new ArrayList<>();
+            for (int i = 0; i < files.size(); i++) {
+                try {
+                    series.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    Exception cause = (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+                    String rootName = FilenameUtils.getBaseName(files.get(i));
+                    System.out.println("Cannot read series of " + rootName + ": " + cause.getMessage());
+                    results.writeError(rootName, "Reading", cause);
+                    series.add(Collections.emptyList());
+                }
+            }
+            return(series);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+    
+    
+    /**
+     * Names of the series of an image file, indexed by series
+     * A file with a single series keeps the file name
+     */
+    public List<String> findSeries(String file, Parameters params) throws DependencyException, ServiceException, FormatException, IOException {
+        String rootName = FilenameUtils.getBaseName(file);
+        int nSeries;
+        try (ImageProcessorReader reader = params.readerCache.open(file)) {
+            nSeries = reader.getSeriesCount();
+        }
+        if (nSeries == 1)
+            return(Collections.singletonList(rootName));
+        List<String> names = new ArrayList<>();
+        for (int s = 0; s < nSeries; s++)
+            names.add(String.format("%s_s%02d", rootName, s+1));
+        return(names);
+    }
+    
+    
+    /**
+     * Open Iba1 channel of job image: file is parsed once (or its header restored from the Bio-Formats cache),
+     * metadata and planes come from the same reader, and only the planes of the channel are decoded
+     * Planes are loaded at once, or lazily if a planes cache is given
+     * When loaded at once, background noise is computed on the fly
+     * Job parameters get the image calibration
+     */
+    public void openChannel(ImageJob job, Parameters params) throws DependencyException, ServiceException, FormatException, IOException {
+        // Each job has its own reader, so series of a file can be read at the same time
+        ImageProcessorReader reader = params.readerCache.open(job.file);
+        // Reader is closed here unless a lazily loaded stack was built on it
+        boolean readerOwned = false;
+        try {
+            IMetadata meta = ReaderCache.metadata(reader);
+            reader.setSeries(job.series);
+            
+            job.params = params;
+            if (params.calibFromImages) {
+                Calibration imgCal = readImageCalib(meta, job.series);
+                if (imgCal != null)
+                    job.params = params.withCalibration(imgCal);
+            }
+            System.out.println("XY calibration = " + job.params.pixelWidth + ", Z calibration = " + job.params.pixelDepth);
+            
+            ImageStack stack;
+            if (params.planeCacheMB > 0) {
+                stack = new CachedReaderStack(reader, params.channelIndex, (long) params.planeCacheMB << 20);
+            } else {
+                // Background noise is updated while planes are read
+                stack = new ImageStack(reader.getSizeX(), reader.getSizeY());
+                BackgroundEstimator bgEstimator = new BackgroundEstimator(reader.getSizeX(), reader.getSizeY());
+                for (int z = 0; z < reader.getSizeZ(); z++) {
+                    ImageProcessor ip = reader.openProcessors(reader.getIndex(z, params.channelIndex, 0))[0];
+                    bgEstimator.addPlane(ip);
+                    stack.addSlice(ip);
+                }
+                job.bg = bgEstimator.getMedian();
+                System.out.println("Background noise (median of the min projection) = " + job.bg);
+            }
+            job.imgIba1 = new ImagePlus(job.rootName, stack);
+            job.imgIba1.setCalibration(job.params.getCalibration());
+            readerOwned = stack instanceof CachedReaderStack;
+        } finally {
+            if (!readerOwned)
+                reader.close();
+        }
+    }
+    
        
     /**
-     * Detect objects in 3D using 2D-stitched version of Cellpose
+     * Define Cellpose settings
      */
-    public Objects3DIntPopulation cellposeDetection(ImagePlus imgIn, ArrayList<Roi> rois, Object3DInt obj) {
-        // Define CellPose settings
-        CellposeTaskSettings settings = new CellposeTaskSettings(cellposeModelPath+cellposeModel, 1, cellposeDiam, cellposeEnvDir);
-        settings.setStitchThreshold(cellposeStitchTh);
-        settings.useGpu(true);
-
-        // Run Cellpose
-        ImagePlus img = imgIn.duplicate();
-        CellposeSegmentImgPlusAdvanced cellpose = new CellposeSegmentImgPlusAdvanced(settings, img);
-        ImagePlus imgOut = cellpose.run();        
-        imgOut.setCalibration(cal);
-        
-        // Fill ROIs in black
-        if (!rois.isEmpty())
-            fillImg(imgOut, rois);
-        
-        Objects3DIntPopulation pop = new Objects3DIntPopulation(ImageHandler.wrap(imgOut));
-        System.out.println("Nb objects detected: "+pop.getNbObjects());
-        popFilterZ(pop);
-        popFilterSize(pop, minSomaVol, maxSomaVol);
-        popFilterColoc(pop, obj);
-        System.out.println("Nb objects remaining after filtering: "+ pop.getNbObjects());
-        pop.resetLabels();
-        
-        closeImage(img);
-        closeImage(imgOut);
-        return(pop);
+    public CellposeTaskSettings cellposeSettings(Parameters params) {
+        CellposeTaskSettings settings = new CellposeTaskSettings(params.cellposeModelPath+params.cellposeModel, 1, params.cellposeDiam, params.cellposeEnvDir);
+        settings.setStitchThreshold(params.cellposeStitchTh);
+        settings.useGpu(params.cellposeGpu);
+        settings.useWorker(params.cellposeWorker);
+        settings.useRawExchange(params.cellposeRawExchange);
+        // Synthetic masks instead of the model, to check the worker protocol without Cellpose
+        settings.useStubWorker(cellposeStub());
+        settings.setProcesses(params.cellposeProcesses);
+        settings.setThreads(params.cellposeThreads);
+        settings.setTimeout(params.cellposeTimeoutMin);
+        return(settings);
     }
     
     
     /**
-     * Fill ROIs in black in image
+     * Whether Cellpose is replaced by the synthetic masks of the stub worker
      */
-    public ImagePlus fillImg(ImagePlus img, ArrayList<Roi> rois) {
-        img.getProcessor().setColor(Color.BLACK);
-        for (int s = 1; s <= img.getNSlices(); s++) {
-            img.setSlice(s);
-            for (Roi r : rois) {
-                img.setRoi(r);
-                img.getProcessor().fill(img.getRoi());
+    private boolean cellposeStub() {
+        return(Boolean.getBoolean("iba1.cellpose.stub"));
+    }
+    
+    
+    /**
+     * Cellpose labels of images in full image coordinates, Cellpose being run on the box region of each image (whole image if null)
+     * Masks cache entries are keyed by the whole image and hold the region Cellpose was run on,
+     * an entry is reused whenever its region contains the box, whatever the cells mask the box came from
+     */
+    private List<ImagePlus> cellposeLabels(List<ImagePlus> imgs, List<ForegroundBox> boxes, List<ImageJob> jobs, Parameters params) {
+        CellposeTaskSettings settings = cellposeSettings(params);
+        // Synthetic masks are never cached, so that they cannot be mistaken for Cellpose ones
+        MaskCache cache = cellposeStub() ? null : params.maskCache;
+        
+        List<ImagePlus> labels = new ArrayList<>(Collections.nCopies(imgs.size(), (ImagePlus) null));
+        String[] keys = new String[imgs.size()];
+        ArrayList<Integer> missIdx = new ArrayList<>();
+        ArrayList<ImagePlus> misses = new ArrayList<>();
+        for (int i = 0; i < imgs.size(); i++) {
+            ImagePlus img = imgs.get(i);
+            if (cache != null) {
+                keys[i] = MaskCache.key(img, settings);
+                ImagePlus cached = cache.get(keys[i], cellposeRegion(img, boxes.get(i)));
+                if (cached != null) {
+                    cached.setCalibration(img.getCalibration());
+                    cached.setTitle(img.getShortTitle() + "-cellpose");
+                    labels.set(i, cached);
+                    continue;
+                }
             }
+            missIdx.add(i);
+            misses.add(cellposeInput(img, boxes.get(i)));
         }
-        img.deleteRoi();
-        return(img);
-    } 
+        if (misses.isEmpty())
+            return(labels);
+        
+        CellposeSegmentImgPlusAdvanced cellpose = new CellposeSegmentImgPlusAdvanced(settings, misses);
+        List<ImagePlus> missesOut;
+        try (Timings.Span span = Timings.span(jobs, "Somas/Cellpose")) {
+            missesOut = cellpose.runBatch();
+        }
+        for (int m = 0; m < misses.size(); m++) {
+            closeImage(misses.get(m));
+            int i = missIdx.get(m);
+            ImagePlus imgOut = cellposeOutput(missesOut.get(m), boxes.get(i));
+            if (imgOut != null && cache != null)
+                cache.put(keys[i], imgOut, cellposeRegion(imgs.get(i), boxes.get(i)));
+            labels.set(i, imgOut);
+        }
+        return(labels);
+    }
     
     
     /**
-     * Remove objects that appear in only one z-slice
+     * Region of image sent to Cellpose {x, y, z, width, height, depth}
      */
-    public void popFilterZ(Objects3DIntPopulation pop) {
-        pop.getObjects3DInt().removeIf(p -> (p.getObject3DPlanes().size() == 1));
+    private int[] cellposeRegion(ImagePlus img, ForegroundBox box) {
+        if (box == null)
+            return(new int[] {0, 0, 0, img.getWidth(), img.getHeight(), img.getStackSize()});
+        return(box.region());
     }
     
     
     /**
-     * Remove objects in population with size < min and size > max
+     * Image sent to Cellpose: copy of the whole image, or of the cells region only
      */
-    public void popFilterSize(Objects3DIntPopulation pop, double min, double max) {
-        pop.setVoxelSizeXY(cal.pixelWidth);
-        pop.setVoxelSizeZ(cal.pixelDepth);
-        pop.getObjects3DInt().removeIf(p -> (new MeasureVolume(p).getVolumeUnit() < min) || (new MeasureVolume(p).getVolumeUnit() > max));
+    private ImagePlus cellposeInput(ImagePlus img, ForegroundBox box) {
+        if (box == null)
+            return(img.duplicate());
+        System.out.println(String.format("Cellpose region: %dx%dx%d at (%d,%d,%d), %.0f%% of image",
+                box.width, box.height, box.depth, box.x, box.y, box.z, 100*box.fraction()));
+        return(box.crop(img));
     }
     
     
     /**
-     * Remove objects in population with less than 25% of their volume colocalizing with a given mask
+     * Cellpose labels in full image coordinates
      */
-    public void popFilterColoc(Objects3DIntPopulation somaPop, Object3DInt cellMask) {
-        Objects3DIntPopulation cellPop = new Objects3DIntPopulation();
-        cellPop.addObject(cellMask);
-        MeasurePopulationColocalisation coloc = new MeasurePopulationColocalisation(somaPop, cellPop);
-        somaPop.getObjects3DInt().removeIf(soma -> coloc.getValueObjectsPair(soma, cellMask) < 0.25*soma.size());
+    private ImagePlus cellposeOutput(ImagePlus labels, ForegroundBox box) {
+        if (labels == null || box == null || box.isFull())
+            return(labels);
+        ImagePlus imgOut = box.uncrop(labels);
+        closeImage(labels);
+        return(imgOut);
     }
     
     
     /**
-     * Segment objects in 2D with median filtering + thresholding
+     * Detect objects in 3D in a batch of images with a single Cellpose call
+     */
+    public void cellposeDetection(List<ImageJob> jobs, Parameters params) {
+        // Images without cells are skipped, as no soma could colocalize with them
+        ArrayList<ImageJob> sent = new ArrayList<>();
+        ArrayList<ForegroundBox> boxes = new ArrayList<>();
+        for (ImageJob job: jobs) {
+            // Somas are detected once for all threshold methods, in the region of their cells masks union
+            BitMask cells = job.cellMasks.size() == 1 ? job.cellMasks.values().iterator().next() : BitMask.union(job.cellMasks.values());
+            ForegroundBox box = params.cellposeCrop ? ForegroundBox.of(cells, job.params) : null;
+            if (params.cellposeCrop && box == null) {
+                System.out.println("Image " + job.rootName + ": empty cells mask, Cellpose skipped");
+                job.somaPops = new LinkedHashMap<>();
+                for (String method: job.cellMasks.keySet())
+                    job.somaPops.put(method, new Objects3DIntPopulation());
+                continue;
+            }
+            sent.add(job);
+            boxes.add(box);
+        }
+        if (sent.isEmpty())
+            return;
+        
+        // Run Cellpose
+        ArrayList<ImagePlus> imgs = new ArrayList<>();
+        for (ImageJob job: sent)
+            imgs.add(job.imgIba1);
+        List<ImagePlus> imgsOut = cellposeLabels(imgs, boxes, sent, params);
+        
+        for (int i = 0; i < sent.size(); i++) {
+            ImageJob job = sent.get(i);
+            System.out.println("Image " + job.rootName);
+            if (imgsOut.get(i) == null) {
+                // Other images of the batch can go on
+                job.error = new IOException("Cellpose returned no masks");
+                continue;
+            }
+            try (Timings.Span span = Timings.span(job, "Somas/Filtering")) {
+                job.somaPops = somaFiltering(imgsOut.get(i), job.roiMask, job.cellMasks, job.params);
+            }
+        }
+    }
+    
+    
+    /**
+     * Get somas population from Cellpose labels image
+     * Keep somas in more than one slice, with volume in range and colocalizing with cells mask
+     */
+    public Objects3DIntPopulation somaFiltering(ImagePlus imgOut, RoiMask roiMask, BitMask cellMask, Parameters params) {
+        return(somaFiltering(imgOut, roiMask, Collections.singletonMap("", cellMask), params).get(""));
+    }
+    
+    
+    /**
+     * Get somas population of each cells mask from the same Cellpose labels image
+     * Labels are scanned and the population is built once, then filtered for each mask
+     * Populations share their objects, which keep their Cellpose labels (somas are numbered when the overlay is drawn)
      */
-    public Object3DInt segmentation(ImagePlus imgIn, ArrayList<Roi> rois) {
-        ImagePlus imgMed = median3DSliceBySlice(imgIn, 2);
-        ImagePlus imgOut = threshold(imgMed, cellThMethod);
-        imgOut.setCalibration(cal);
+    public LinkedHashMap<String, Objects3DIntPopulation> somaFiltering(ImagePlus imgOut, RoiMask roiMask, Map<String, BitMask> cellMasks, Parameters params) {
+        imgOut.setCalibration(params.getCalibration());
         
         // Fill ROIs in black
-        if (!rois.isEmpty())
-            fillImg(imgOut, rois);
+        fillImg(imgOut, roiMask);
         
-        Objects3DIntPopulation pop = getPopFromImage(imgOut);
+        Objects3DIntPopulation pop = new Objects3DIntPopulation(ImageHandler.wrap(imgOut));
         System.out.println("Nb objects detected: "+pop.getNbObjects());
-        popFilterSize(pop, minCellVol, Double.MAX_VALUE);
-        System.out.println("Nb objects remaining after size filtering: "+ pop.getNbObjects());
-        
-        Object3DInt obj = convertPopToObj(pop, imgIn);
+        // Somas in more than one slice, with volume in range and colocalizing with each mask, from a single scan of the labels
+        SomaFilter filter = SomaFilter.measure(imgOut, new ArrayList<>(cellMasks.values()));
+        LinkedHashMap<String, Objects3DIntPopulation> pops = new LinkedHashMap<>();
+        for (String method: cellMasks.keySet()) {
+            Objects3DIntPopulation kept = filter.filter(pop, pops.size(), params.minSomaVol, params.maxSomaVol, params);
+            System.out.println("Nb objects remaining after filtering" + (method.isEmpty() ? "" : " (" + method + ")") + ": "+ kept.getNbObjects());
+            pops.put(method, kept);
+        }
         
-        closeImage(imgMed);
         closeImage(imgOut);
-        return(obj);
+        return(pops);
     }
-      
+    
     
     /**
-     * 2D median filtering slice by slice using CLIJ2
-     */ 
-    public ImagePlus median3DSliceBySlice(ImagePlus img, double sizeXY) {
-       ClearCLBuffer imgCL = clij2.push(img); 
-       ClearCLBuffer imgCLMed = clij2.create(imgCL);
-       clij2.median3DSliceBySliceSphere(imgCL, imgCLMed, sizeXY, sizeXY);
-       ImagePlus imgMed = clij2.pull(imgCLMed);
-       clij2.release(imgCL);
-       clij2.release(imgCLMed);
-       return(imgMed);
+     * Rasterize ROIs union of image once, to be reused by all stages
+     */
+    public RoiMask roiMask(ArrayList<Roi> rois, ImagePlus img) {
+        return(RoiMask.rasterize(rois, img.getWidth(), img.getHeight()));
+    }
+    
+    
+    /**
+     * Fill ROIs in black in image
+     */
+    public ImagePlus fillImg(ImagePlus img, ArrayList<Roi> rois) {
+        return(fillImg(img, roiMask(rois, img)));
     }
     
     
     /**
-     * Automatic thresholding using CLIJ2
+     * Fill ROIs mask in black in all slices of image
+     */
+    public ImagePlus fillImg(ImagePlus img, RoiMask roiMask) {
+        return(roiMask.clear(img));
+    } 
+    
+    
+    /**
+     * Segment objects in 2D with median filtering + thresholding
      */
-    public ImagePlus threshold(ImagePlus img, String thMed) {
-        ClearCLBuffer imgCL = clij2.push(img);
-        ClearCLBuffer imgCLBin = clij2.create(imgCL);
-        clij2.automaticThreshold(imgCL, imgCLBin, thMed);
-        ImagePlus imgBin = clij2.pull(imgCLBin);
-        clij2.release(imgCL);
-        clij2.release(imgCLBin);
-        return(imgBin);
+    public BitMask segmentation(ImagePlus imgIn, ArrayList<Roi> rois, Parameters params) {
+        ImagePlus imgMed = median3DSliceBySlice(imgIn, 2, params);
+        ImagePlus imgOut = threshold(imgMed, params.cellThMethod, params);
+        closeImage(imgMed);
+        return(binaryToCellMask(imgOut, roiMask(rois, imgIn), params));
     }
     
     
     /**
-     * Return population of 3D objects population from binary image
+     * Segment objects in 2D with median filtering + thresholding,
+     * and compute background noise of the image in the same pass (raw image sent once to the device)
+     * if it was not already computed during reading
+     * With several threshold methods, see thresholdSweep
      */
-    public Objects3DIntPopulation getPopFromImage(ImagePlus img) {
-        ImageInt labels = new ImageLabeller().getLabels(ImageHandler.wrap(img));
-        Objects3DIntPopulation pop = new Objects3DIntPopulation(labels);
-        labels.closeImagePlus();
-        return(pop);
+    public void segmentation(ImageJob job, Parameters params) {
+        if (params.thMethods.size() > 1) {
+            thresholdSweep(job, params);
+            return;
+        }
+        boolean computeBg = Double.isNaN(job.bg);
+        FilteredStack filtered;
+        try (Timings.Span span = Timings.span(job, "Segmentation/Filters")) {
+            filtered = params.filters.segment(job.imgIba1, 2, params.cellThMethod, computeBg);
+        }
+        if (computeBg) {
+            job.bg = filtered.bg;
+            System.out.println("Background noise (median of the min projection) = " + job.bg);
+        }
+        try (Timings.Span span = Timings.span(job, "Segmentation/Cell object")) {
+            job.cellMasks = new LinkedHashMap<>();
+            job.cellMasks.put(params.cellThMethod, binaryToCellMask(filtered.binary, job.roiMask, params));
+        }
     }
     
     
     /**
-     * Convert Objects3DIntPopulation to Object3DInt
+     * Segment objects with each threshold method of params.thMethods
+     * Median filtering is done once. The main method is thresholded with the filters backend, as in segmentation,
+     * so its mask is the one of a run without sweep; the other thresholds are computed from a single CPU histogram
+     * of the filtered stack (same bins and thresholds as CLIJ2), only binarization, labelling and size filtering
+     * are repeated for each of them
      */
-    public Object3DInt convertPopToObj(Objects3DIntPopulation pop, ImagePlus img) {
-        ImageHandler imh = ImageHandler.wrap(img).createSameDimensions();
-        for (Object3DInt obj: pop.getObjects3DInt())
-            obj.drawObject(imh, 255);
-        return(new Object3DInt(imh));
+    public void thresholdSweep(ImageJob job, Parameters params) {
+        ImagePlus imgMed;
+        try (Timings.Span span = Timings.span(job, "Segmentation/Filters")) {
+            imgMed = params.filters.median3DSliceBySlice(job.imgIba1, 2);
+            if (Double.isNaN(job.bg))
+                job.bg = computeBackgroundNoise(job.imgIba1);
+        }
+        
+        ImagePlus imgBin;
+        LinkedHashMap<String, Float> thresholds = new LinkedHashMap<>();
+        try (Timings.Span span = Timings.span(job, "Segmentation/Thresholds")) {
+            imgBin = params.filters.threshold(imgMed, params.cellThMethod);
+            float[] minMax = CPUBackend.stackMinMax(imgMed.getStack());
+            int[] histo = CPUBackend.stackHistogram(imgMed.getStack(), minMax[0], minMax[1]);
+            for (String method: params.thMethods) {
+                if (method.equals(params.cellThMethod))
+                    continue;
+                thresholds.put(method, CPUBackend.getThreshold(histo, method, minMax[0], minMax[1]));
+                System.out.println(method + " threshold = " + thresholds.get(method));
+            }
+        }
+        
+        // Main method first, binary stacks are labelled one at a time
+        job.cellMasks = new LinkedHashMap<>();
+        try (Timings.Span span = Timings.span(job, "Segmentation/Cell object")) {
+            job.cellMasks.put(params.cellThMethod, binaryToCellMask(imgBin, job.roiMask, params));
+            for (Map.Entry<String, Float> th: thresholds.entrySet())
+                job.cellMasks.put(th.getKey(), binaryToCellMask(CPUBackend.binarize(imgMed, th.getValue()), job.roiMask, params));
+        }
+        closeImage(imgMed);
     }
     
+    
+    /**
+     * Clear ROIs in binary image, remove small objects and merge remaining ones into a single mask
+     */
+    public BitMask binaryToCellMask(ImagePlus imgOut, RoiMask roiMask, Parameters params) {
+        imgOut.setCalibration(params.getCalibration());
         
+        // Fill ROIs in black
+        fillImg(imgOut, roiMask);
+        
+        // Label and size-filter components on primitive arrays, without mcib3d objects
+        ConnectedComponents components = new ConnectedComponents(imgOut);
+        System.out.println("Nb objects detected: "+components.getNbComponents());
+        BitMask mask = components.filteredMask(params.minCellVol, params);
+        System.out.println("Nb objects remaining after size filtering: "+ components.getNbKept());
+        
+        closeImage(imgOut);
+        return(mask);
+    }
+      
+    
+    /**
+     * 2D median filtering slice by slice using the selected filters backend
+     */ 
+    public ImagePlus median3DSliceBySlice(ImagePlus img, double sizeXY, Parameters params) {
+       return(params.filters.median3DSliceBySlice(img, sizeXY));
+    }
+    
+    
+    /**
+     * Automatic thresholding using the selected filters backend
+     */
+    public ImagePlus threshold(ImagePlus img, String thMed, Parameters params) {
+        return(params.filters.threshold(img, thMed));
+    }
+    
+    
     /**
      * Compute image background noise:
      * z-project over min intensity + read median intensity
      */
     public double computeBackgroundNoise(ImagePlus img) {
-      ImagePlus imgProj = zProject(img, ZProjector.MIN_METHOD);
-      double bg = imgProj.getProcessor().getStatistics().median;
+      BackgroundEstimator bgEstimator = new BackgroundEstimator(img.getWidth(), img.getHeight());
+      ImageStack stack = img.getStack();
+      for (int s = 1; s <= stack.getSize(); s++)
+          bgEstimator.addPlane(stack.getProcessor(s));
+      double bg = bgEstimator.getMedian();
       System.out.println("Background noise (median of the min projection) = " + bg);
-      closeImage(imgProj);
       return(bg);
     }
     
     
     /**
-     * Z-projection a stack
+     * Compute ROIs total volume, overlapping ROIs counted once
      */
-    public ImagePlus zProject(ImagePlus img, int param) {
-        ZProjector zproject = new ZProjector();
-        zproject.setMethod(param);
-        zproject.setStartSlice(1);
-        zproject.setStopSlice(img.getNSlices());
-        zproject.setImage(img);
-        zproject.doProjection();
-       return(zproject.getProjection());
+    public double getRoisVolume(ArrayList<Roi> rois, ImagePlus img, Parameters params) {
+        return(getRoisVolume(roiMask(rois, img), img, params));
     }
     
     
     /**
-     * Compute ROIs total volume
+     * Compute ROIs mask volume from its pixels count
      */
-    public double getRoisVolume(ArrayList<Roi> rois, ImagePlus img) {
-        double roisVol = 0;
-        for(Roi roi: rois) {
-            PolygonRoi poly = new PolygonRoi(roi.getFloatPolygon(), Roi.FREEROI);
-            poly.setLocation(0, 0);
-            
-            img.resetRoi();
-            img.setRoi(poly);
-
-            ResultsTable rt = new ResultsTable();
-            Analyzer analyzer = new Analyzer(img, Analyzer.AREA, rt);
-            analyzer.measure();
-            roisVol += rt.getValue("Area", 0);
-        }
-
-        return(roisVol * img.getNSlices() * cal.pixelDepth);
+    public double getRoisVolume(RoiMask roiMask, ImagePlus img, Parameters params) {
+        return(roiMask.volume(img, params));
+    }
+    
+    
+    /**
+     * Intensities statistics inside mask, read plane by plane
+     * (image planes are not all loaded in memory at once)
+     */
+    public MaskStats measureIntensity(BitMask mask, ImagePlus img) {
+        return(MaskStats.measure(mask, img));
     }
     
     
@@ -496,42 +891,10 @@ public class Tools {
     
     /**
      * Draw results
+     * Overlay is built and written slice by slice in a compressed TIFF, according to the overlay mode
      */
-    public void drawResults(Objects3DIntPopulation somaPop, Object3DInt cellObj, ImagePlus img,  String name) {
-        ImageHandler imhSoma = ImageHandler.wrap(img).createSameDimensions();
-        ImagePlus imgLabels = IJ.createImage("", "8-bit black", img.getWidth(), img.getHeight(), img.getNSlices());
-        ImageHandler imhCell = imhSoma.createSameDimensions();
-        
-        // Draw soma in red and cells in blue
-        for(Object3DInt soma: somaPop.getObjects3DInt())
-            soma.drawObject(imhSoma, 255);
-        drawLabels(somaPop, imgLabels);
-        cellObj.drawObject(imhCell, 255);
-
-        ImagePlus[] imgColors = {imhSoma.getImagePlus(), null, imhCell.getImagePlus(), img, null, null, imgLabels};
-        ImagePlus imgObjects = new RGBStackMerge().mergeHyperstacks(imgColors, false);
-        imgObjects.setCalibration(cal);
-        
-        FileSaver ImgObjectsFile = new FileSaver(imgObjects);
-        ImgObjectsFile.saveAsTiff(name); 
-        
-        imhSoma.closeImagePlus();
-        imhCell.closeImagePlus();
-    }
-    
-    /**
-     * Draw label of each object in population
-     */
-    public void drawLabels(Objects3DIntPopulation pop, ImagePlus img) {
-        Font font = new Font("SansSerif", Font.PLAIN, 12);
-        for (Object3DInt obj: pop.getObjects3DInt()) {
-            BoundingBox bbox = obj.getBoundingBox();
-            img.setSlice(bbox.zmin+1);
-            ImageProcessor ip = img.getProcessor();
-            ip.setFont(font);
-            ip.setColor(255);
-            ip.drawString(String.valueOf((int)obj.getLabel()), bbox.xmin, bbox.ymin);
-            img.updateAndDraw();
-        }
+    public void drawResults(Objects3DIntPopulation somaPop, BitMask cellMask, ImagePlus img,  String name, Parameters params) 
+            throws DependencyException, ServiceException, FormatException, IOException {
+        new OverlayWriter(params.overlayMode).write(somaPop, cellMask, img, name, params);
     }
 }
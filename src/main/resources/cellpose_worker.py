@@ -0,0 +1,104 @@
+"""
+Long-lived Cellpose worker used by the Iba1 Fiji plugin
+Loads the model once, then answers requests read line by line on stdin:
+    PING                                        -> PONG
+    SEGMENT<TAB>input<TAB>output<TAB>diameter<TAB>stitch_threshold
+                                                -> OK<TAB>output | ERROR<TAB>message
+    QUIT                                        -> BYE
+Input and output are TIFF files, or raw npy files (memory-mapped) if their name ends with .npy
+Responses are written on stdout, everything else (Cellpose and torch logs) goes to stderr
+With --stub, no model is loaded and synthetic masks are returned, to test the protocol without Cellpose
+"""
+import argparse
+import os
+import sys
+
+
+class StubModel:
+    """Return one cubic label per 64x64 tile, through all z-slices"""
+
+    def eval(self, img, diameter, stitch_threshold, **kwargs):
+        import numpy as np
+        masks = np.zeros(img.shape, dtype=np.uint16)
+        size = max(4, int(diameter) // 2)
+        label = 0
+        for y in range(size, img.shape[-2] - size, 64):
+            for x in range(size, img.shape[-1] - size, 64):
+                label += 1
+                masks[..., y:y + size, x:x + size] = label
+        return masks
+
+
+class CellposeModel:
+
+    def __init__(self, args):
+        from cellpose import models
+        model_path = args.pretrained_model
+        if not os.path.exists(model_path):
+            model_path = os.fspath(models.MODEL_DIR.joinpath(model_path))
+        self.model = models.CellposeModel(gpu=args.use_gpu, pretrained_model=model_path)
+        self.channels = [args.chan, max(args.chan2, 0)]
+        self.flow_threshold = args.flow_threshold
+        self.cellprob_threshold = args.cellprob_threshold
+
+    def eval(self, img, diameter, stitch_threshold, **kwargs):
+        masks = self.model.eval(img, channels=self.channels, diameter=diameter,
+                                flow_threshold=self.flow_threshold,
+                                cellprob_threshold=self.cellprob_threshold,
+                                stitch_threshold=stitch_threshold, do_3D=False)[0]
+        return masks
+
+
+def main():
+    parser = argparse.ArgumentParser()
+    parser.add_argument("--pretrained_model", default="")
+    parser.add_argument("--chan", type=int, default=0)
+    parser.add_argument("--chan2", type=int, default=0)
+    parser.add_argument("--flow_threshold", type=float, default=0.4)
+    parser.add_argument("--cellprob_threshold", type=float, default=0.0)
+    parser.add_argument("--use_gpu", action="store_true")
+    parser.add_argument("--stub", action="store_true")
+    args = parser.parse_args()
+
+    # Keep stdout for protocol responses only
+    out = sys.stdout
+    sys.stdout = sys.stderr
+
+    def reply(*fields):
+        out.write("\t".join(str(f) for f in fields) + "\n")
+        out.flush()
+
+    model = StubModel() if args.stub else CellposeModel(args)
+    import numpy as np
+    import tifffile
+    reply("READY")
+
+    for line in sys.stdin:
+        fields = line.rstrip("\r\n").split("\t")
+        cmd = fields[0]
+        if cmd == "PING":
+            reply("PONG")
+        elif cmd == "QUIT":
+            reply("BYE")
+            break
+        elif cmd == "SEGMENT" and len(fields) == 5:
+            try:
+                if fields[1].endswith(".npy"):
+                    img = np.load(fields[1], mmap_mode="r")
+                else:
+                    img = tifffile.imread(fields[1])
+                masks = model.eval(np.asarray(img), diameter=float(fields[3]), stitch_threshold=float(fields[4]))
+                dtype = np.uint16 if masks.max() < 65536 else np.uint32
+                if fields[2].endswith(".npy"):
+                    np.save(fields[2], masks.astype(dtype))
+                else:
+                    tifffile.imwrite(fields[2], masks.astype(dtype))
+                reply("OK", fields[2])
+            except Exception as e:
+                reply("ERROR", str(e).replace("\n", " ").replace("\t", " "))
+        else:
+            reply("ERROR", "Unknown request: " + cmd)
+
+
+if __name__ == "__main__":
+    main()
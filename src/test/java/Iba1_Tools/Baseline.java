@@ -0,0 +1,126 @@
+package Iba1_Tools;
+
+import ij.ImagePlus;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.measure.ResultsTable;
+import ij.plugin.filter.Analyzer;
+import java.awt.Color;
+import java.util.List;
+import mcib3d.geom2.Object3DInt;
+import mcib3d.geom2.Objects3DIntPopulation;
+import mcib3d.geom2.measurements.MeasureVolume;
+import mcib3d.geom2.measurementsPopulation.MeasurePopulationColocalisation;
+import mcib3d.image3d.ImageHandler;
+import mcib3d.image3d.ImageInt;
+import mcib3d.image3d.ImageLabeller;
+import mcib3d.image3d.ImageShort;
+
+
+/**
+ * mcib3d-based implementations that Tools used before the primitive arrays kernels,
+ * kept as references for the equivalence tests
+ * @author Héloïse Monnet
+ */
+final class Baseline {
+
+    private Baseline() {
+    }
+
+
+    /**
+     * Fill ROIs in black, one ROI and one slice at a time
+     */
+    static ImagePlus fillImg(ImagePlus img, List<Roi> rois) {
+        img.getProcessor().setColor(Color.BLACK);
+        for (int s = 1; s <= img.getNSlices(); s++) {
+            img.setSlice(s);
+            for (Roi r : rois) {
+                img.setRoi(r);
+                img.getProcessor().fill(img.getRoi());
+            }
+        }
+        img.deleteRoi();
+        return(img);
+    }
+
+
+    /**
+     * ROIs total volume from the area of each ROI polygon, overlaps counted in each ROI
+     */
+    static double roisVolume(List<Roi> rois, ImagePlus img, Parameters params) {
+        double roisVol = 0;
+        for(Roi roi: rois) {
+            PolygonRoi poly = new PolygonRoi(roi.getFloatPolygon(), Roi.FREEROI);
+            poly.setLocation(0, 0);
+            
+            img.resetRoi();
+            img.setRoi(poly);
+
+            ResultsTable rt = new ResultsTable();
+            Analyzer analyzer = new Analyzer(img, Analyzer.AREA, rt);
+            analyzer.measure();
+            roisVol += rt.getValue("Area", 0);
+        }
+        img.resetRoi();
+        return(roisVol * img.getNSlices() * params.pixelDepth);
+    }
+
+
+    /**
+     * Somas filtering of Tools.cellposeDetection: popFilterZ, popFilterSize and popFilterColoc on the labels population
+     */
+    static Objects3DIntPopulation somaFiltering(ImagePlus labels, List<Roi> rois, Object3DInt cellObj, Parameters params) {
+        if (!rois.isEmpty())
+            fillImg(labels, rois);
+        Objects3DIntPopulation pop = new Objects3DIntPopulation(ImageHandler.wrap(labels));
+        pop.getObjects3DInt().removeIf(p -> (p.getObject3DPlanes().size() == 1));
+        popFilterSize(pop, params.minSomaVol, params.maxSomaVol, params);
+        Objects3DIntPopulation cellPop = new Objects3DIntPopulation();
+        cellPop.addObject(cellObj);
+        MeasurePopulationColocalisation coloc = new MeasurePopulationColocalisation(pop, cellPop);
+        pop.getObjects3DInt().removeIf(soma -> coloc.getValueObjectsPair(soma, cellObj) < 0.25*soma.size());
+        pop.resetLabels();
+        return(pop);
+    }
+
+
+    /**
+     * Cells object of Tools.segmentation from a binary image: getPopFromImage, popFilterSize and convertPopToObj
+     */
+    static Object3DInt cellObject(ImagePlus binary, List<Roi> rois, Parameters params) {
+        if (!rois.isEmpty())
+            fillImg(binary, rois);
+        ImageInt labels = new ImageLabeller().getLabels(ImageHandler.wrap(binary));
+        Objects3DIntPopulation pop = new Objects3DIntPopulation(labels);
+        labels.closeImagePlus();
+        popFilterSize(pop, params.minCellVol, Double.MAX_VALUE, params);
+        ImageHandler imh = ImageHandler.wrap(binary).createSameDimensions();
+        for (Object3DInt obj: pop.getObjects3DInt())
+            obj.drawObject(imh, 255);
+        Object3DInt obj = new Object3DInt(imh);
+        obj.setVoxelSizeXY(params.pixelWidth);
+        obj.setVoxelSizeZ(params.pixelDepth);
+        return(obj);
+    }
+
+
+    static void popFilterSize(Objects3DIntPopulation pop, double min, double max, Parameters params) {
+        pop.setVoxelSizeXY(params.pixelWidth);
+        pop.setVoxelSizeZ(params.pixelDepth);
+        pop.getObjects3DInt().removeIf(p -> (new MeasureVolume(p).getVolumeUnit() < min) || (new MeasureVolume(p).getVolumeUnit() > max));
+    }
+
+
+    /**
+     * Population drawn with objects numbered from 1 in population order, as in the overlay,
+     * to compare populations voxel by voxel
+     */
+    static short[][] draw(Objects3DIntPopulation pop, int width, int height, int nSlices) {
+        ImageShort imh = new ImageShort("labels", width, height, nSlices);
+        int number = 0;
+        for (Object3DInt obj: pop.getObjects3DInt())
+            obj.drawObject(imh, ++number);
+        return(imh.pixels);
+    }
+}
@@ -0,0 +1,233 @@
+package Iba1_Tools.Cellpose;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ShortProcessor;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Worker protocol (READY, PING, SEGMENT, QUIT) with the stub model of cellpose_worker.py
+ * Needs a python with numpy and tifffile on the PATH, skipped otherwise
+ * @author Héloïse Monnet
+ */
+public class CellposeWorkerTest {
+
+    private static final int SIZE = 128;
+    private static final int DIAMETER = 20;
+
+    private Path envDir;
+    private Path workDir;
+    private CellposeTaskSettings settings;
+
+
+    @Before
+    public void setUp() throws Exception {
+        Assume.assumeFalse("Worker command is only built for conda envs on Linux and macOS here", IJ.isWindows());
+        String python = stubPython();
+        Assume.assumeTrue("python3 with numpy and tifffile not found", python != null);
+
+        // Fake conda env: the worker runs <env>/bin/python
+        envDir = Files.createTempDirectory("iba1-env");
+        Files.createDirectories(envDir.resolve("bin"));
+        Files.createSymbolicLink(envDir.resolve("bin").resolve("python"), Paths.get(python));
+        workDir = Files.createTempDirectory("iba1-worker");
+
+        settings = new CellposeTaskSettings("stub", 1, DIAMETER, envDir.toString())
+                .useWorker(true)
+                .useStubWorker(true)
+                .setTimeout(1);
+    }
+
+
+    @After
+    public void tearDown() throws IOException {
+        CellposeWorker.shutdownAll();
+        delete(workDir);
+        delete(envDir);
+    }
+
+
+    @Test
+    public void segmentsTiffAndAnswersPing() throws Exception {
+        CellposeWorker worker = CellposeWorker.acquire(settings);
+        try {
+            worker.start();
+            assertTrue(worker.isHealthy());
+
+            File input = workDir.resolve("img.tif").toFile();
+            File output = workDir.resolve("labels.tif").toFile();
+            IJ.saveAsTiff(image(), input.getPath());
+            File result = worker.segment(input, output, DIAMETER, 0.5);
+            checkStubLabels(IJ.openImage(result.getPath()));
+        } finally {
+            CellposeWorker.release(worker);
+        }
+    }
+
+
+    @Test
+    public void segmentsRawNpyBuffers() throws Exception {
+        CellposeWorker worker = CellposeWorker.acquire(settings);
+        try {
+            File input = workDir.resolve("img.npy").toFile();
+            File output = workDir.resolve("labels.npy").toFile();
+            NpyIO.write(image(), input);
+            File result = worker.segment(input, output, DIAMETER, 0.5);
+            checkStubLabels(NpyIO.read(result));
+        } finally {
+            CellposeWorker.release(worker);
+        }
+    }
+
+
+    @Test
+    public void restartsKilledWorker() throws Exception {
+        CellposeWorker worker = CellposeWorker.acquire(settings);
+        try {
+            worker.start();
+            Process process = process(worker);
+            process.destroyForcibly().waitFor();
+            assertFalse(worker.isHealthy());
+
+            // Next request starts a new process
+            File input = workDir.resolve("img.tif").toFile();
+            File output = workDir.resolve("labels.tif").toFile();
+            IJ.saveAsTiff(image(), input.getPath());
+            checkStubLabels(IJ.openImage(worker.segment(input, output, DIAMETER, 0.5).getPath()));
+            assertTrue(process(worker) != process);
+            assertTrue(worker.isHealthy());
+        } finally {
+            CellposeWorker.release(worker);
+        }
+    }
+
+
+    @Test
+    public void quitsOnShutdown() throws Exception {
+        CellposeWorker worker = CellposeWorker.acquire(settings);
+        CellposeWorker.release(worker);
+        worker.start();
+        Process process = process(worker);
+        worker.shutdown();
+        assertFalse(process.isAlive());
+        assertFalse(worker.isHealthy());
+    }
+
+
+    @Test
+    public void retiresBusyWorkerWhenSettingsChange() throws Exception {
+        CellposeWorker old = CellposeWorker.acquire(settings);
+        old.start();
+        Process oldProcess = process(old);
+
+        // Other settings while the old worker is busy: a new worker is given without waiting for it
+        CellposeTaskSettings other = new CellposeTaskSettings("stub", 1, DIAMETER, envDir.toString())
+                .useWorker(true)
+                .useStubWorker(true)
+                .setProcesses(2)
+                .setTimeout(1);
+        CellposeWorker worker = CellposeWorker.acquire(other);
+        try {
+            assertTrue(worker != old);
+            assertTrue(oldProcess.isAlive());
+        } finally {
+            CellposeWorker.release(worker);
+        }
+
+        // Old worker is stopped when given back
+        CellposeWorker.release(old);
+        assertFalse(oldProcess.isAlive());
+        assertFalse(old.isHealthy());
+    }
+
+
+    /**
+     * 16-bit stack of 3 slices
+     */
+    private static ImagePlus image() {
+        ImageStack stack = new ImageStack(SIZE, SIZE);
+        for (int z = 0; z < 3; z++) {
+            ShortProcessor ip = new ShortProcessor(SIZE, SIZE);
+            ip.add(100 + z);
+            stack.addSlice(ip);
+        }
+        return(new ImagePlus("img", stack));
+    }
+
+
+    /**
+     * Stub model draws one square label of diameter/2 pixels per 64x64 tile, starting at diameter/2
+     */
+    private static void checkStubLabels(ImagePlus labels) {
+        assertEquals(SIZE, labels.getWidth());
+        assertEquals(SIZE, labels.getHeight());
+        assertEquals(3, labels.getStackSize());
+        int start = DIAMETER/2;
+        for (int z = 1; z <= 3; z++) {
+            labels.setSlice(z);
+            assertEquals(0, labels.getProcessor().get(0, 0));
+            assertEquals(1, labels.getProcessor().get(start, start));
+            assertEquals(2, labels.getProcessor().get(start + 64, start));
+            assertEquals(3, labels.getProcessor().get(start, start + 64));
+            assertEquals(4, labels.getProcessor().get(start + 64, start + 64));
+            assertEquals(0, labels.getProcessor().get(start + DIAMETER/2, start));
+        }
+    }
+
+
+    private static Process process(CellposeWorker worker) throws ReflectiveOperationException {
+        Field f = CellposeWorker.class.getDeclaredField("process");
+        f.setAccessible(true);
+        return((Process) f.get(worker));
+    }
+
+
+    /**
+     * Path of a python3 able to run the stub worker, null if none
+     */
+    private static String stubPython() {
+        try {
+            Process p = new ProcessBuilder("python3", "-c", "import sys, numpy, tifffile; print(sys.executable)")
+                    .redirectErrorStream(true).start();
+            String line;
+            try (BufferedReader out = new BufferedReader(new InputStreamReader(p.getInputStream(), StandardCharsets.UTF_8))) {
+                line = out.readLine();
+            }
+            return(p.waitFor() == 0 && line != null ? line.trim() : null);
+        } catch (IOException e) {
+            return(null);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return(null);
+        }
+    }
+
+
+    private static void delete(Path path) throws IOException {
+        if (path == null || !Files.exists(path, LinkOption.NOFOLLOW_LINKS))
+            return;
+        File[] contents = path.toFile().listFiles();
+        if (contents != null && !Files.isSymbolicLink(path))
+            for (File f: contents)
+                delete(f.toPath());
+        Files.delete(path);
+    }
+}
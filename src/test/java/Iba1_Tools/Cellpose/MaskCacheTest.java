@@ -0,0 +1,93 @@
+package Iba1_Tools.Cellpose;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ShortProcessor;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.zip.GZIPOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+
+/**
+ * Masks cache entries are reused for any region contained in the one Cellpose was run on
+ * @author Héloïse Monnet
+ */
+public class MaskCacheTest {
+
+    private File dir;
+    private MaskCache cache;
+
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("iba1-masks").toFile();
+        cache = new MaskCache(dir, 1 << 20);
+    }
+
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File f: files)
+                f.delete();
+        dir.delete();
+    }
+
+
+    @Test
+    public void reusesLabelsForContainedRegion() {
+        ImagePlus labels = labels();
+        cache.put("key", labels, new int[] {10, 20, 1, 50, 40, 3});
+
+        ImagePlus cached = cache.get("key", new int[] {15, 25, 2, 40, 30, 2});
+        assertNotNull(cached);
+        for (int s = 1; s <= labels.getStackSize(); s++)
+            assertArrayEquals((short[]) labels.getStack().getPixels(s), (short[]) cached.getStack().getPixels(s));
+        assertNotNull(cache.get("key", new int[] {10, 20, 1, 50, 40, 3}));
+    }
+
+
+    @Test
+    public void missesLargerRegion() {
+        cache.put("key", labels(), new int[] {10, 20, 1, 50, 40, 3});
+        assertNull(cache.get("key", new int[] {9, 20, 1, 50, 40, 3}));
+        assertNull(cache.get("key", new int[] {10, 20, 1, 50, 41, 3}));
+        assertNull(cache.get("key", new int[] {10, 20, 0, 50, 40, 4}));
+        assertNull(cache.get("other", new int[] {10, 20, 1, 50, 40, 3}));
+        // Entry is kept for later runs on a smaller region
+        assertNotNull(cache.get("key", new int[] {10, 20, 1, 50, 40, 3}));
+    }
+
+
+    @Test
+    public void dropsEntriesOfOlderFormat() throws IOException {
+        File old = new File(dir, "old.labels.gz");
+        try (GZIPOutputStream out = new GZIPOutputStream(new FileOutputStream(old))) {
+            out.write(new byte[64]);
+        }
+        assertNull(cache.get("old", new int[] {0, 0, 0, 1, 1, 1}));
+        assertFalse(old.exists());
+    }
+
+
+    private static ImagePlus labels() {
+        ImageStack stack = new ImageStack(80, 70);
+        for (int z = 0; z < 5; z++) {
+            ShortProcessor ip = new ShortProcessor(80, 70);
+            for (int i = 0; i < 80*70; i += 7)
+                ip.set(i, (i + z) % 300);
+            stack.addSlice(ip);
+        }
+        return(new ImagePlus("labels", stack));
+    }
+}
@@ -0,0 +1,109 @@
+package Iba1_Tools.Cellpose;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ShortProcessor;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+
+/**
+ * npy files are read back with the same pixels, Cellpose uint32 labels without any rescaling
+ * @author Héloïse Monnet
+ */
+public class NpyIOTest {
+
+    private File dir;
+
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("iba1-npy").toFile();
+    }
+
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File f: files)
+                f.delete();
+        dir.delete();
+    }
+
+
+    @Test
+    public void roundTrips16Bit() throws IOException {
+        ImageStack stack = new ImageStack(30, 20);
+        for (int z = 0; z < 3; z++) {
+            ShortProcessor ip = new ShortProcessor(30, 20);
+            for (int i = 0; i < 30*20; i++)
+                ip.set(i, (i * 37 + z) % 65536);
+            stack.addSlice(ip);
+        }
+        File file = new File(dir, "img.npy");
+        NpyIO.write(new ImagePlus("img", stack), file);
+        ImagePlus read = NpyIO.read(file);
+        assertEquals(3, read.getStackSize());
+        for (int s = 1; s <= 3; s++)
+            assertArrayEquals((short[]) stack.getPixels(s), (short[]) read.getStack().getPixels(s));
+        // File is not held open, it can be deleted right away
+        file.delete();
+        assertFalse(file.exists());
+    }
+
+
+    @Test
+    public void keepsUint32Labels() throws IOException {
+        File file = uint32(new int[] {0, 1, 2, 300, 65535, 7});
+        ImagePlus read = NpyIO.read(file);
+        assertEquals(16, read.getBitDepth());
+        assertArrayEquals(new short[] {0, 1, 2, 300, (short) 65535, 7}, (short[]) read.getProcessor().getPixels());
+    }
+
+
+    @Test
+    public void refusesLabelsAbove16Bit() throws IOException {
+        File file = uint32(new int[] {0, 1, 65536, 2, 3, 4});
+        try {
+            NpyIO.read(file);
+            fail("Label 65536 was read");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+
+    /**
+     * 2x3 uint32 npy file
+     */
+    private File uint32(int[] values) throws IOException {
+        String dict = "{'descr': '<u4', 'fortran_order': False, 'shape': (2, 3), }";
+        StringBuilder sb = new StringBuilder(dict);
+        while ((10 + sb.length() + 1) % 64 != 0)
+            sb.append(' ');
+        sb.append('\n');
+        byte[] header = sb.toString().getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer buf = ByteBuffer.allocate(10 + header.length + 4*values.length).order(ByteOrder.LITTLE_ENDIAN);
+        buf.put(new byte[] {(byte) 0x93, 'N', 'U', 'M', 'P', 'Y', 1, 0}).putShort((short) header.length).put(header);
+        for (int v: values)
+            buf.putInt(v);
+        File file = new File(dir, "labels.npy");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(buf.array());
+        }
+        return(file);
+    }
+}
@@ -0,0 +1,123 @@
+package Iba1_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.process.ByteProcessor;
+import java.util.ArrayList;
+import java.util.Random;
+import mcib3d.geom2.Object3DInt;
+import mcib3d.geom2.Objects3DIntPopulation;
+import mcib3d.geom2.measurements.MeasureVolume;
+import mcib3d.image3d.ImageHandler;
+import mcib3d.image3d.ImageInt;
+import mcib3d.image3d.ImageLabeller;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * ConnectedComponents finds the same components as the mcib3d labeller, whatever the slabs boundaries,
+ * and with BitMask gives the same cells mask as the mcib3d labelling and size filtering of Baseline.cellObject
+ * @author Héloïse Monnet
+ */
+public class ConnectedComponentsTest {
+
+    private Tools tools;
+    private Parameters params;
+    private SyntheticStacks stacks;
+    private ArrayList<Roi> rois;
+
+
+    @Before
+    public void setUp() {
+        ToolsFixture fixture = new ToolsFixture(12, 11);
+        tools = fixture.tools;
+        params = fixture.params;
+        stacks = fixture.stacks;
+        rois = fixture.rois;
+    }
+
+
+    @Test
+    public void sameMaskOnSyntheticCells() {
+        ImagePlus imgMed = tools.median3DSliceBySlice(stacks.iba1, 2, params);
+        ImagePlus binary = tools.threshold(imgMed, params.cellThMethod, params);
+        assertSameMask(binary);
+    }
+
+
+    /**
+     * Sparse noise: many small components, touching by faces, edges and corners across slabs boundaries
+     * Depths give several planes per slab, one plane per slab and a single slab
+     */
+    @Test
+    public void sameComponentsOnNoise() {
+        for (int depth: new int[] {17, 3, 1}) {
+            ImagePlus binary = noise(97, 61, depth, 5);
+            ImageInt labels = new ImageLabeller().getLabels(ImageHandler.wrap(binary));
+            assertEquals("depth " + depth, new Objects3DIntPopulation(labels).getNbObjects(), new ConnectedComponents(binary).getNbComponents());
+            assertSameMask(binary);
+        }
+    }
+
+
+    /**
+     * Two diagonal chains of voxels, connected by corners only, one through all slabs and a shorter one
+     */
+    @Test
+    public void mergesAcrossSlabsBoundaries() {
+        int width = 64, height = 64, depth = 40;
+        ImageStack stack = new ImageStack(width, height);
+        for (int z = 0; z < depth; z++) {
+            ByteProcessor ip = new ByteProcessor(width, height);
+            ip.set(z, z, 255);
+            if (z < 5)
+                ip.set(60 - z, z, 255);
+            stack.addSlice(ip);
+        }
+        ConnectedComponents components = new ConnectedComponents(new ImagePlus("chains", stack));
+        assertEquals(2, components.getNbComponents());
+
+        // Long chain only: 40 voxels of 0.09 microns^3, the short one has 5
+        BitMask mask = components.filteredMask(1, params);
+        assertEquals(1, components.getNbKept());
+        assertEquals(depth, mask.count());
+        for (int z = 0; z < depth; z++)
+            assertTrue(mask.get(z*width + z, z));
+    }
+
+
+    private static ImagePlus noise(int width, int height, int depth, long seed) {
+        Random rnd = new Random(seed);
+        ImageStack stack = new ImageStack(width, height);
+        for (int z = 0; z < depth; z++) {
+            ByteProcessor ip = new ByteProcessor(width, height);
+            for (int i = 0; i < width*height; i++)
+                if (rnd.nextDouble() < 0.2)
+                    ip.set(i, 255);
+            stack.addSlice(ip);
+        }
+        return(new ImagePlus("noise", stack));
+    }
+
+
+    private void assertSameMask(ImagePlus binary) {
+        binary.setCalibration(params.getCalibration());
+        Object3DInt expected = Baseline.cellObject(binary.duplicate(), rois, params);
+        BitMask actual = tools.binaryToCellMask(binary.duplicate(), tools.roiMask(rois, binary), params);
+
+        BitMask expectedMask = BitMask.fromObject(expected, binary.getWidth(), binary.getHeight(), binary.getNSlices());
+        assertTrue(expectedMask.count() > 0);
+        for (int z = 0; z < binary.getNSlices(); z++)
+            for (int i = 0; i < binary.getWidth()*binary.getHeight(); i++)
+                if (expectedMask.get(i, z) != actual.get(i, z))
+                    throw new AssertionError("slice " + z + " voxel " + i + ": expected " + expectedMask.get(i, z));
+
+        MeasureVolume volume = new MeasureVolume(expected);
+        assertEquals((long) volume.getVolumePix(), actual.count());
+        assertEquals(volume.getVolumeUnit(), MaskStats.measure(actual, binary).volume(params), 1e-9 * volume.getVolumeUnit());
+    }
+}
@@ -0,0 +1,103 @@
+package Iba1_Tools.Filters;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ShortProcessor;
+import java.util.Random;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+
+/**
+ * CPU filters give the same pixels as the CLIJ2 ones
+ * Skipped when CLIJ2 has no usable OpenCL device
+ * @author Héloïse Monnet
+ */
+public class FilterBackendsParityTest {
+
+    private static final String[] METHODS = {"Default", "Huang", "Li", "Otsu", "Triangle", "Moments"};
+
+    private static CLIJ2Backend clij2;
+    private final CPUBackend cpu = new CPUBackend();
+
+
+    @BeforeClass
+    public static void setUpClass() {
+        try {
+            clij2 = new CLIJ2Backend();
+            clij2.getDeviceName();
+        } catch (Throwable e) {
+            clij2 = null;
+        }
+        Assume.assumeTrue("No OpenCL device", clij2 != null);
+    }
+
+
+    @Test
+    public void medianIsIdentical() {
+        ImagePlus img = noisyStack(1);
+        assertSamePixels(clij2.median3DSliceBySlice(img, 2), cpu.median3DSliceBySlice(img, 2));
+    }
+
+
+    @Test
+    public void thresholdIsIdentical() {
+        ImagePlus img = noisyStack(2);
+        for (String method: METHODS)
+            assertSamePixels(method, clij2.threshold(img, method), cpu.threshold(img, method));
+    }
+
+
+    @Test
+    public void segmentIsIdentical() {
+        ImagePlus img = noisyStack(3);
+        FilteredStack gpu = clij2.segment(img, 2, "Otsu", true);
+        FilteredStack cpuOut = cpu.segment(img, 2, "Otsu", true);
+        assertSamePixels(gpu.binary, cpuOut.binary);
+        assertEquals(gpu.bg, cpuOut.bg, 0);
+    }
+
+
+    /**
+     * 16-bit stack: noisy background, bright disks and a few saturated pixels
+     */
+    private static ImagePlus noisyStack(long seed) {
+        Random rnd = new Random(seed);
+        int width = 96, height = 80, depth = 5;
+        ImageStack stack = new ImageStack(width, height);
+        for (int z = 0; z < depth; z++) {
+            ShortProcessor ip = new ShortProcessor(width, height);
+            for (int i = 0; i < width*height; i++)
+                ip.set(i, (int) Math.max(0, 200 + rnd.nextGaussian()*40));
+            for (int c = 0; c < 6; c++) {
+                int cx = rnd.nextInt(width), cy = rnd.nextInt(height), r = 4 + rnd.nextInt(6);
+                for (int y = Math.max(0, cy-r); y < Math.min(height, cy+r); y++)
+                    for (int x = Math.max(0, cx-r); x < Math.min(width, cx+r); x++)
+                        if ((x-cx)*(x-cx) + (y-cy)*(y-cy) <= r*r)
+                            ip.set(x, y, 900 + rnd.nextInt(400));
+            }
+            ip.set(rnd.nextInt(width*height), 4095);
+            stack.addSlice(ip);
+        }
+        return(new ImagePlus("noisy", stack));
+    }
+
+
+    private static void assertSamePixels(ImagePlus expected, ImagePlus actual) {
+        assertSamePixels("", expected, actual);
+    }
+
+
+    private static void assertSamePixels(String msg, ImagePlus expected, ImagePlus actual) {
+        assertEquals(msg, expected.getStackSize(), actual.getStackSize());
+        for (int s = 1; s <= expected.getStackSize(); s++) {
+            float[] e = (float[]) expected.getStack().getProcessor(s).convertToFloat().getPixels();
+            float[] a = (float[]) actual.getStack().getProcessor(s).convertToFloat().getPixels();
+            for (int i = 0; i < e.length; i++)
+                if (e[i] != a[i])
+                    throw new AssertionError(msg + " slice " + s + " pixel " + i + ": expected " + e[i] + " but was " + a[i]);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package Iba1_Tools;
+
+import java.io.File;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+
+/**
+ * Headless arguments string splitting
+ * @author Héloïse Monnet
+ */
+public class HeadlessOptionsTest {
+
+    @Test
+    public void splitsOnWhitespace() {
+        assertArrayEquals(new String[] {"--images", "/data", "--shard", "3/10"}, HeadlessOptions.split("  --images /data\t--shard  3/10 "));
+    }
+
+
+    @Test
+    public void keepsQuotedValuesWhole() {
+        assertArrayEquals(new String[] {"--images", "/data/my images", "--params", "it's.properties", "--output", ""},
+                HeadlessOptions.split("--images \"/data/my images\" --params \"it's.properties\" --output ''"));
+        assertArrayEquals(new String[] {"--images=/data/my images"}, HeadlessOptions.split("--images='/data/my images'"));
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnclosedQuote() {
+        HeadlessOptions.split("--images \"/data/my images");
+    }
+
+
+    @Test
+    public void parsesSplitArguments() throws Exception {
+        HeadlessOptions options = HeadlessOptions.parse(HeadlessOptions.split("--images \"/data/my images\" --shard 1/4"));
+        assertEquals("/data/my images" + File.separator, options.imageDir);
+        assertEquals(1, options.shard);
+        assertEquals(4, options.nShards);
+    }
+}
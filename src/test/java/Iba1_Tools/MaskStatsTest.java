@@ -0,0 +1,91 @@
+package Iba1_Tools;
+
+import ij.ImagePlus;
+import ij.process.StackConverter;
+import java.util.ArrayList;
+import java.util.Random;
+import mcib3d.geom2.Object3DInt;
+import mcib3d.geom2.measurements.MeasureIntensity;
+import mcib3d.geom2.measurements.MeasureVolume;
+import mcib3d.image3d.ImageHandler;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+
+/**
+ * MaskStats gives the same cells measurements as MeasureVolume and MeasureIntensity on the cells object
+ * @author Héloïse Monnet
+ */
+public class MaskStatsTest {
+
+    private Tools tools;
+    private Parameters params;
+    private SyntheticStacks stacks;
+
+
+    @Before
+    public void setUp() {
+        ToolsFixture fixture = new ToolsFixture(12, 13);
+        tools = fixture.tools;
+        params = fixture.params;
+        stacks = fixture.stacks;
+    }
+
+
+    @Test
+    public void sameMeasurementsOnCellsObject() {
+        ImagePlus imgMed = tools.median3DSliceBySlice(stacks.iba1, 2, params);
+        ImagePlus binary = tools.threshold(imgMed, params.cellThMethod, params);
+        binary.setCalibration(params.getCalibration());
+        Object3DInt cellObj = Baseline.cellObject(binary, new ArrayList<>(), params);
+        BitMask cellMask = BitMask.fromObject(cellObj, binary.getWidth(), binary.getHeight(), binary.getNSlices());
+
+        assertSameMeasurements(cellObj, cellMask, stacks.iba1);
+        ImagePlus img8 = stacks.iba1.duplicate();
+        new StackConverter(img8).convertToGray8();
+        assertSameMeasurements(cellObj, cellMask, img8);
+        ImagePlus img32 = stacks.iba1.duplicate();
+        new StackConverter(img32).convertToGray32();
+        assertSameMeasurements(cellObj, cellMask, img32);
+    }
+
+
+    /**
+     * Full and partial 64 voxels words, including the last word of each plane
+     */
+    @Test
+    public void sameMeasurementsOnBlockMask() {
+        int width = stacks.iba1.getWidth(), height = stacks.iba1.getHeight(), nSlices = stacks.iba1.getNSlices();
+        BitMask mask = new BitMask(width, height, nSlices);
+        Random rnd = new Random(3);
+        for (int z = 1; z < nSlices-1; z++) {
+            for (int y = 10; y < height; y++)
+                for (int x = 3; x < width; x++)
+                    mask.set(y*width + x, z);
+            for (int k = 0; k < 500; k++)
+                mask.set(rnd.nextInt(width*height), z);
+        }
+        assertSameMeasurements(mask.toObject3DInt(params), mask, stacks.iba1);
+    }
+
+
+    private void assertSameMeasurements(Object3DInt cellObj, BitMask cellMask, ImagePlus img) {
+        MeasureVolume mv = new MeasureVolume(cellObj);
+        MeasureIntensity mi = new MeasureIntensity(cellObj, ImageHandler.wrap(img));
+        MaskStats stats = tools.measureIntensity(cellMask, img);
+
+        double bg = 200;
+        assertEquals((long) mv.getVolumePix(), stats.count);
+        assertEquals(mv.getVolumeUnit(), stats.volume(params), 1e-9 * mv.getVolumeUnit());
+        double sum = mi.getValueMeasurement(MeasureIntensity.INTENSITY_SUM);
+        assertEquals(sum, stats.sum, 1e-9 * sum);
+        double avg = mi.getValueMeasurement(MeasureIntensity.INTENSITY_AVG);
+        assertEquals(avg, stats.mean(), 1e-9 * avg);
+        assertEquals(mi.getValueMeasurement(MeasureIntensity.INTENSITY_MIN), stats.min, 0);
+        assertEquals(mi.getValueMeasurement(MeasureIntensity.INTENSITY_MAX), stats.max, 0);
+        // Results columns: mean and integrated intensity minus background
+        assertEquals(avg - bg, stats.mean() - bg, 1e-9 * avg);
+        assertEquals(sum - bg*mv.getVolumePix(), stats.sum - bg*stats.count, 1e-9 * sum);
+    }
+}
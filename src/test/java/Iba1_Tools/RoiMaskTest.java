@@ -0,0 +1,93 @@
+package Iba1_Tools;
+
+import ij.ImagePlus;
+import ij.gui.OvalRoi;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import java.util.ArrayList;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+
+/**
+ * RoiMask clears the same pixels as filling each ROI in each slice,
+ * and its volume matches the ROIs polygons area, except that overlaps are counted once
+ * @author Héloïse Monnet
+ */
+public class RoiMaskTest {
+
+    private Tools tools;
+    private Parameters params;
+    private SyntheticStacks stacks;
+
+
+    @Before
+    public void setUp() {
+        ToolsFixture fixture = new ToolsFixture(6, 17);
+        tools = fixture.tools;
+        params = fixture.params;
+        stacks = fixture.stacks;
+        // ROIs volume is measured on iba1 calibration
+        stacks.iba1.setCalibration(params.getCalibration());
+    }
+
+
+    @Test
+    public void clearsSamePixels() {
+        ArrayList<Roi> rois = new ArrayList<>();
+        rois.add(new OvalRoi(20, 30, 90, 70));
+        rois.add(new Roi(60, 50, 80, 40));
+        rois.add(new PolygonRoi(new int[] {150, 250, 270, 180}, new int[] {-10, 40, 120, 150}, 4, Roi.POLYGON));
+        rois.add(new OvalRoi(200, 160, 100, 60));
+
+        // Images the ROIs are filled in: cells binary image and somas labels
+        ImagePlus binary = tools.threshold(stacks.iba1, params.cellThMethod, params);
+        assertSamePixels(Baseline.fillImg(binary.duplicate(), rois), tools.fillImg(binary.duplicate(), rois));
+        assertSamePixels(Baseline.fillImg(stacks.somaLabels.duplicate(), rois), tools.fillImg(stacks.somaLabels.duplicate(), rois));
+    }
+
+
+    @Test
+    public void noRoiLeavesImageUnchanged() {
+        assertSamePixels(stacks.somaLabels, tools.fillImg(stacks.somaLabels.duplicate(), new ArrayList<>()));
+        assertEquals(0, tools.getRoisVolume(new ArrayList<>(), stacks.iba1, params), 0);
+    }
+
+
+    @Test
+    public void volumeCountsOverlapOnce() {
+        // Rectangles: polygon area and pixels count are the same
+        ArrayList<Roi> rois = new ArrayList<>();
+        rois.add(new Roi(10, 10, 50, 40));
+        rois.add(new Roi(100, 20, 30, 60));
+        double pixVol = params.pixelWidth * params.pixelWidth * params.pixelDepth;
+        double expected = Baseline.roisVolume(rois, stacks.iba1, params);
+        assertEquals(expected, tools.getRoisVolume(rois, stacks.iba1, params), 1e-9 * expected);
+
+        // Overlapping rectangles: the 20x10 overlap used to be counted twice
+        rois.add(new Roi(40, 40, 40, 20));
+        expected = Baseline.roisVolume(rois, stacks.iba1, params) - 20*10 * stacks.iba1.getNSlices() * pixVol;
+        assertEquals(expected, tools.getRoisVolume(rois, stacks.iba1, params), 1e-9 * expected);
+
+        // Oval: pixels count is close to the polygon area
+        rois.clear();
+        rois.add(new OvalRoi(20, 30, 90, 70));
+        expected = Baseline.roisVolume(rois, stacks.iba1, params);
+        assertEquals(expected, tools.getRoisVolume(rois, stacks.iba1, params), 0.02 * expected);
+    }
+
+
+    private static void assertSamePixels(ImagePlus expected, ImagePlus actual) {
+        assertEquals(expected.getStackSize(), actual.getStackSize());
+        for (int s = 1; s <= expected.getStackSize(); s++) {
+            Object e = expected.getStack().getPixels(s);
+            Object a = actual.getStack().getPixels(s);
+            if (e instanceof byte[])
+                assertArrayEquals("slice " + s, (byte[]) e, (byte[]) a);
+            else
+                assertArrayEquals("slice " + s, (short[]) e, (short[]) a);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package Iba1_Tools;
+
+import ij.ImagePlus;
+import ij.gui.Roi;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import mcib3d.geom2.Objects3DIntPopulation;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * SomaFilter keeps the same somas as the z, size and colocalization filters of Baseline.somaFiltering on mcib3d objects
+ * @author Héloïse Monnet
+ */
+public class SomaFilterTest {
+
+    private Tools tools;
+    private Parameters params;
+    private SyntheticStacks stacks;
+    private ArrayList<Roi> rois;
+
+
+    @Before
+    public void setUp() {
+        ToolsFixture fixture = new ToolsFixture(12, 7);
+        tools = fixture.tools;
+        params = fixture.params;
+        stacks = fixture.stacks;
+        rois = fixture.rois;
+    }
+
+
+    @Test
+    public void keepsSameSomas() {
+        BitMask cellMask = tools.segmentation(stacks.iba1, rois, params);
+        Objects3DIntPopulation expected = Baseline.somaFiltering(stacks.somaLabels.duplicate(), rois, cellMask.toObject3DInt(params), params);
+        Objects3DIntPopulation actual = tools.somaFiltering(stacks.somaLabels.duplicate(), tools.roiMask(rois, stacks.iba1), cellMask, params);
+
+        // Some somas are filtered out and some are kept
+        assertTrue(expected.getNbObjects() > 0);
+        assertTrue(expected.getNbObjects() < stacks.nCells);
+        assertSamePopulation(expected, actual);
+    }
+
+
+    @Test
+    public void keepsSameSomasForEachMask() {
+        RoiMask roiMask = tools.roiMask(rois, stacks.iba1);
+        ImagePlus imgMed = tools.median3DSliceBySlice(stacks.iba1, 2, params);
+        Map<String, BitMask> cellMasks = new LinkedHashMap<>();
+        for (String method: new String[] {"Otsu", "Li", "Triangle"})
+            cellMasks.put(method, tools.binaryToCellMask(tools.threshold(imgMed, method, params), roiMask, params));
+
+        Map<String, Objects3DIntPopulation> actual = tools.somaFiltering(stacks.somaLabels.duplicate(), roiMask, cellMasks, params);
+        assertEquals(cellMasks.keySet(), actual.keySet());
+        for (Map.Entry<String, BitMask> e: cellMasks.entrySet()) {
+            Objects3DIntPopulation expected = Baseline.somaFiltering(stacks.somaLabels.duplicate(), rois, e.getValue().toObject3DInt(params), params);
+            assertSamePopulation(expected, actual.get(e.getKey()));
+        }
+    }
+
+
+    private void assertSamePopulation(Objects3DIntPopulation expected, Objects3DIntPopulation actual) {
+        assertEquals(expected.getNbObjects(), actual.getNbObjects());
+        int width = stacks.somaLabels.getWidth(), height = stacks.somaLabels.getHeight(), nSlices = stacks.somaLabels.getNSlices();
+        short[][] e = Baseline.draw(expected, width, height, nSlices);
+        short[][] a = Baseline.draw(actual, width, height, nSlices);
+        for (int z = 0; z < nSlices; z++)
+            assertArrayEquals("slice " + z, e[z], a[z]);
+    }
+}
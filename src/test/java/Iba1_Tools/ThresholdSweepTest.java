@@ -0,0 +1,72 @@
+package Iba1_Tools;
+
+import ij.gui.Roi;
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+
+/**
+ * Threshold sweep gives, for each method, the cells mask of a run with that method only
+ * @author Héloïse Monnet
+ */
+public class ThresholdSweepTest {
+
+    private Tools tools;
+    private SyntheticStacks stacks;
+    private ArrayList<Roi> rois;
+
+
+    @Before
+    public void setUp() {
+        ToolsFixture fixture = new ToolsFixture(12, 19);
+        tools = fixture.tools;
+        stacks = fixture.stacks;
+        rois = fixture.rois;
+    }
+
+
+    @Test
+    public void sweepMasksMatchSingleRuns() {
+        tools.thresholdSweep = "Li,Triangle";
+        Parameters sweepParams = new Parameters(tools, "0", 0);
+        assertEquals(Arrays.asList("Otsu", "Li", "Triangle"), sweepParams.thMethods);
+        ImageJob sweep = job();
+        tools.segmentation(sweep, sweepParams);
+        assertEquals(sweepParams.thMethods, new ArrayList<>(sweep.cellMasks.keySet()));
+
+        tools.thresholdSweep = "";
+        for (String method: sweepParams.thMethods) {
+            tools.cellThMethod = method;
+            Parameters params = new Parameters(tools, "0", 0);
+            ImageJob single = job();
+            tools.segmentation(single, params);
+            assertSameMask(method, single.cellMasks.get(method), sweep.cellMasks.get(method));
+            // Results row of the method
+            MaskStats expected = tools.measureIntensity(single.cellMasks.get(method), stacks.iba1);
+            MaskStats actual = tools.measureIntensity(sweep.cellMasks.get(method), stacks.iba1);
+            assertEquals(method, expected.count, actual.count);
+            assertEquals(method, expected.sum, actual.sum, 0);
+            assertEquals(method, single.bg, sweep.bg, 0);
+        }
+    }
+
+
+    private ImageJob job() {
+        ImageJob job = new ImageJob(0, "synthetic.tif");
+        job.imgIba1 = stacks.iba1;
+        job.roiMask = tools.roiMask(rois, stacks.iba1);
+        return(job);
+    }
+
+
+    private static void assertSameMask(String method, BitMask expected, BitMask actual) {
+        assertEquals(method, expected.count(), actual.count());
+        for (int z = 0; z < expected.nSlices; z++)
+            for (int i = 0; i < expected.width*expected.height; i++)
+                if (expected.get(i, z) != actual.get(i, z))
+                    throw new AssertionError(method + " slice " + z + " voxel " + i + ": expected " + expected.get(i, z));
+    }
+}